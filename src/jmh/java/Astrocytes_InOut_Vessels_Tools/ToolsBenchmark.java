@@ -0,0 +1,212 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.plugin.RGBStackMerge;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import mcib3d.geom2.Objects3DIntPopulation;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * Throughput of each analysis stage on synthetic stacks, headless
+ * Each stage reports its invocations/s and, through the voxels counter, voxels of the stack processed per second
+ * Run with the jmh profile, allocation rates are added by the gc profiler
+ * @author ORION-CIRB
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true"})
+public class ToolsBenchmark {
+
+    @Param({"256x256x30", "1024x1024x60", "2048x2048x120"})
+    public String size;
+
+    @Param({"1"})
+    public double density;
+
+    private Tools tools;
+    private Parameters params;
+    private long nbVoxels;
+    private ImagePlus[] imgs;
+    private RoiMask roiMask;
+    private ImagePlus imgVesselLabels, imgDilVessels;
+    private RunLengthPopulation vesselsPop, astrocytesPop, astroInPop, astroOutPop;
+
+
+    /**
+     * Voxels of the stack processed, reported by JMH as a rate
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Voxels {
+        public long voxels;
+    }
+
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Properties props = new Properties();
+        props.setProperty("thresholdBackend", "cpu");
+        params = new Parameters(props);
+        tools = new Tools();
+        SyntheticVolume volume = SyntheticVolume.of(size, density, 42);
+        nbVoxels = volume.getNbVoxels();
+        imgs = volume.generate(params);
+        roiMask = new RoiMask(new ArrayList<>(), imgs[0].getWidth(), imgs[0].getHeight());
+
+        // Inputs of the stages that follow vessels and astrocytes detection
+        imgVesselLabels = tools.findVessels(imgs[0], imgs[1], roiMask, params);
+        imgDilVessels = tools.dilateVessels(imgVesselLabels, params).getImagePlus();
+        vesselsPop = RunLengthPopulation.fromImage(imgVesselLabels);
+        astrocytesPop = tools.findAstrocytes(imgs[2], roiMask, params);
+        List<RunLengthPopulation> inOut = tools.findAstroInOutVessels(astrocytesPop, imgDilVessels);
+        astroInPop = inOut.get(0);
+        astroOutPop = inOut.get(1);
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (ImagePlus img: imgs)
+            tools.flushCloseImg(img);
+        tools.flushCloseImg(imgVesselLabels);
+        tools.flushCloseImg(imgDilVessels);
+    }
+
+
+    @Benchmark
+    public void findVessels(Voxels counter) {
+        tools.flushCloseImg(tools.findVessels(imgs[0], imgs[1], roiMask, params));
+        counter.voxels += nbVoxels;
+    }
+
+
+    @Benchmark
+    public void findAstrocytes(Voxels counter, Blackhole bh) {
+        bh.consume(tools.findAstrocytes(imgs[2], roiMask, params));
+        counter.voxels += nbVoxels;
+    }
+
+
+    @Benchmark
+    public void threshold(Voxels counter) {
+        tools.flushCloseImg(tools.threshold(imgs[2], params.astroThMethod, params));
+        counter.voxels += nbVoxels;
+    }
+
+
+    @Benchmark
+    public void dilateVesselsDistance(Voxels counter) {
+        tools.dilateVessels(imgVesselLabels, params).closeImagePlus();
+        counter.voxels += nbVoxels;
+    }
+
+
+    /**
+     * "objects" dilation mode, dilateObj on each vessel
+     */
+    @Benchmark
+    public void dilateObj(Voxels counter) {
+        tools.dilateVessels(imgVesselLabels, params.with("dilationMode", "objects")).closeImagePlus();
+        counter.voxels += nbVoxels;
+    }
+
+
+    @Benchmark
+    public void findAstroInOutVessels(Voxels counter, Blackhole bh) {
+        bh.consume(tools.findAstroInOutVessels(astrocytesPop, imgDilVessels));
+        counter.voxels += nbVoxels;
+    }
+
+
+    /**
+     * Former result image rendering, RGB merge of one mask per population and Enhance Contrast, baseline of writeOverlay
+     */
+    @Benchmark
+    public void drawResults(Voxels counter) {
+        int width = imgs[2].getWidth(), height = imgs[2].getHeight(), depth = imgs[2].getNSlices();
+        ImagePlus[] imgColors = new ImagePlus[3];
+        RunLengthPopulation[] pops = {astroInPop, astroOutPop, vesselsPop};
+        for (int c = 0; c < pops.length; c++) {
+            BitMask3D mask = new BitMask3D(width, height, depth);
+            pops[c].draw(mask);
+            imgColors[c] = mask.toImagePlus("channel" + c, 255);
+        }
+        ImagePlus imgObjects = new RGBStackMerge().mergeHyperstacks(imgColors, false);
+        imgObjects.setCalibration(params.getCalibration());
+        IJ.run(imgObjects, "Enhance Contrast", "saturated=0.35");
+        for (ImagePlus img: imgColors)
+            tools.flushCloseImg(img);
+        tools.flushCloseImg(imgObjects);
+        counter.voxels += nbVoxels;
+    }
+
+
+    /**
+     * Result image written by OverlayWriter, with default mode and compression, in a temporary file
+     */
+    @Benchmark
+    public void writeOverlay(Voxels counter) throws IOException {
+        File file = File.createTempFile("overlay", ".tif");
+        try {
+            new OverlayWriter(params).write(OverlayWriter.of(vesselsPop, astroInPop, astroOutPop, imgs[2].getWidth(), imgs[2].getHeight()),
+                    imgs[2].getWidth(), imgs[2].getHeight(), imgs[2].getNSlices(), file);
+        } finally {
+            file.delete();
+        }
+        counter.voxels += nbVoxels;
+    }
+
+
+    @Benchmark
+    public void getResults(Voxels counter, Blackhole bh) {
+        bh.consume(tools.getResults(imgVesselLabels, imgDilVessels, astrocytesPop, roiMask, "synthetic", params));
+        counter.voxels += nbVoxels;
+    }
+
+
+    /**
+     * Vessels mcib3d population, rebuilt before each call since popFilterSize removes objects from it
+     */
+    @State(Scope.Thread)
+    public static class VesselsObjects {
+        Objects3DIntPopulation pop;
+
+        @Setup(Level.Invocation)
+        public void setup(ToolsBenchmark bench) {
+            pop = bench.tools.getPopFromLabels(bench.imgVesselLabels);
+        }
+    }
+
+
+    @Benchmark
+    public void popFilterSize(VesselsObjects vessels, Voxels counter, Blackhole bh) {
+        tools.popFilterSize(vessels.pop, params.minVesselVol, Double.MAX_VALUE);
+        bh.consume(vessels.pop);
+        counter.voxels += nbVoxels;
+    }
+
+}
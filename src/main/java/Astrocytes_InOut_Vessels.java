@@ -1,7 +1,10 @@
+import Astrocytes_InOut_Vessels_Tools.BatchRunner;
+import Astrocytes_InOut_Vessels_Tools.ImagePipeline;
+import Astrocytes_InOut_Vessels_Tools.Parameters;
+import Astrocytes_InOut_Vessels_Tools.RunManifest;
 import Astrocytes_InOut_Vessels_Tools.Tools;
 import ij.IJ;
-import ij.ImagePlus;
-import ij.gui.Roi;
+import ij.measure.Calibration;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
@@ -15,18 +18,11 @@ import loci.formats.FormatException;
 import loci.formats.meta.IMetadata;
 import loci.formats.services.OMEXMLService;
 import loci.plugins.util.ImageProcessorReader;
-import loci.plugins.BF;
 import ij.plugin.PlugIn;
-import ij.plugin.frame.RoiManager;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.util.ArrayList;
-import loci.plugins.in.ImporterOptions;
-import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang.ArrayUtils;
-import java.util.Collections;
-import java.util.List;
-import mcib3d.geom2.Objects3DIntPopulation;
 
 
 /**
@@ -67,20 +63,23 @@ public class Astrocytes_InOut_Vessels implements PlugIn {
                 reader.setId(imageFiles.get(0));
                 
                 // Find image calibration
-                tools.findImageCalib(meta);
+                Calibration cal = tools.findImageCalib(meta);
 
                 // Find channel names
                 String[] channels = tools.findChannels(imageFiles.get(0), meta, reader);
+                reader.close();
                 
                 // Dialog box
-                String[] chs = tools.dialog(channels);
-                if (chs == null) {
+                Parameters params = tools.dialog(channels, cal);
+                if (params == null) {
                     IJ.showStatus("Plugin canceled");
                     return;
                 }
+                String[] chs = params.getChannels();
+                int[] indexChs = {ArrayUtils.indexOf(channels, chs[0]), ArrayUtils.indexOf(channels, chs[1]), ArrayUtils.indexOf(channels, chs[2])};
                 
                 // Create output folder
-                String outDirResults = imageDir + File.separator + "Results_" + tools.astroThMethod + File.separator;
+                String outDirResults = imageDir + File.separator + "Results_" + params.astroThMethod + File.separator;
                 File outDir = new File(outDirResults);
                 if (!Files.exists(Paths.get(outDirResults))) {
                     outDir.mkdir();
@@ -89,67 +88,13 @@ public class Astrocytes_InOut_Vessels implements PlugIn {
                 // Write header in results file
                 FileWriter fwResults = new FileWriter(outDirResults +"results.xls",false);
                 BufferedWriter results = new BufferedWriter(fwResults);
-                results.write("Image name\tImage vol (µm3)\tImage-ROI vol (µm3)\tVessels vol (µm3)\tDilated vessels vol (µm3)\t"+
-                              "Astrocytes vol in vessels (µm3)\tAstrocytes vol out vessels (µm3)\n");
+                results.write(tools.resultsHeader);
                 results.flush();
                 
-                
-                for (String f: imageFiles) {
-                    String rootName = FilenameUtils.getBaseName(f);
-                    tools.print("--- ANALYZING IMAGE " + rootName + " ------");
-                    reader.setId(f);
-                    
-                    ImporterOptions options = new ImporterOptions();
-                    options.setId(f);
-                    options.setSplitChannels(true);
-                    options.setColorMode(ImporterOptions.COLOR_MODE_GRAYSCALE);
-                    options.setQuiet(true);
-
-                    // Check if rois file exist, keep rois to clear regions containing "artefacts"
-                    ArrayList<Roi> rois = new ArrayList<>();
-                    String roiRootName = imageDir + File.separator + rootName; 
-                    String roiName = new File(roiRootName + ".zip").exists() ? roiRootName + ".zip" : roiRootName + ".roi";
-                    if (new File(roiName).exists()) {
-                        RoiManager rm = new RoiManager(false);
-                        if (rm != null)
-                            rm.reset();
-                        else
-                            rm = new RoiManager(false);
-                        rm.runCommand("Open", roiName);
-                        Collections.addAll(rois, rm.getRoisAsArray());
-                    }
-
-                    // Open vessels channel
-                    tools.print("- Analyzing microglia and vessels channel -");
-                    int indexCh = ArrayUtils.indexOf(channels, chs[0]);
-                    ImagePlus imgVessel = BF.openImagePlus(options)[indexCh];
-                    indexCh = ArrayUtils.indexOf(channels, chs[1]);
-                    ImagePlus imgMicro = BF.openImagePlus(options)[indexCh];
-                    Objects3DIntPopulation vesselsPop = tools.findVessels(imgVessel, imgMicro, rois);
-
-                    // Open astrocytes channel
-                    tools.print("- Analyzing astrocytes channel -");
-                    indexCh = ArrayUtils.indexOf(channels, chs[2]);
-                    ImagePlus imgAstro = BF.openImagePlus(options)[indexCh];
-                    Objects3DIntPopulation astrocytesPop = tools.findAstrocytes(imgAstro, rois);
-                    
-                    // Find astrocytes into and out of vessels
-                    List<Objects3DIntPopulation> astroInOutPops = tools.findAstroInOutVessels(astrocytesPop, vesselsPop, imgAstro);
-                    Objects3DIntPopulation astroInPop = astroInOutPops.get(0);
-                    Objects3DIntPopulation astroOutPop = astroInOutPops.get(1);
-                    Objects3DIntPopulation dilVesselsPop = astroInOutPops.get(2);
-
-                    // Draw results
-                    tools.print("- Drawing and writing results -");
-                    tools.drawResults(imgAstro, vesselsPop, astroInPop, astroOutPop, outDirResults, rootName);
-
-                    // Write results
-                    tools.writeResults(results, vesselsPop, dilVesselsPop, astroInPop, astroOutPop, imgAstro, rois, rootName);
-                    
-                    tools.flushCloseImg(imgVessel);
-                    tools.flushCloseImg(imgMicro);
-                    tools.flushCloseImg(imgAstro);
-                }
+                // Analyze images, params.parallelImages at a time, skipping images unchanged since last run
+                ImagePipeline pipeline = new ImagePipeline(tools, params, indexChs, imageDir, outDirResults);
+                RunManifest manifest = new RunManifest(new File(outDirResults + "manifest.txt"));
+                new BatchRunner(params.parallelImages).run(imageFiles, pipeline, results, manifest);
                 results.close();
             } catch (IOException | DependencyException | ServiceException | FormatException ex) {
                     Logger.getLogger(Astrocytes_InOut_Vessels.class.getName()).log(Level.SEVERE, null, ex);
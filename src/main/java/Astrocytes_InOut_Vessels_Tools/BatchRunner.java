@@ -0,0 +1,166 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.FilenameUtils;
+
+
+/**
+ * Analyze images on a pool of workers
+ * Images are admitted while their estimated footprint fits in the heap budget,
+ * results are written in images order whatever the order in which they complete
+ * With a run manifest, images whose inputs did not change since the last run are skipped and their previous row is written
+ * @author ORION-CIRB
+ */
+public class BatchRunner {
+
+    private final int nbWorkers;
+    private final MemoryBudget budget;
+
+
+    public BatchRunner(int nbWorkers) {
+        this.nbWorkers = nbWorkers;
+        this.budget = new MemoryBudget(0.8);
+    }
+
+
+    /**
+     * Analyze all images with pipeline and write their results rows
+     */
+    public void run(List<String> imageFiles, ImagePipeline pipeline, BufferedWriter results) throws IOException {
+        run(imageFiles, pipeline, results, null);
+    }
+
+
+    /**
+     * Analyze images with pipeline and write their results rows, skipping images unchanged in manifest (may be null)
+     * Manifest is updated after each image analyzed, pipeline is finished at the end (result images written, run report)
+     */
+    public void run(List<String> imageFiles, ImagePipeline pipeline, BufferedWriter results, RunManifest manifest) throws IOException {
+        try {
+            // A single worker overlaps reading and writing of images with analysis instead
+            if (nbWorkers == 1)
+                new PrefetchPipeline().run(imageFiles, pipeline, results, manifest);
+            else
+                runWorkers(imageFiles, pipeline, results, manifest);
+        } finally {
+            pipeline.finish();
+        }
+    }
+
+
+    private void runWorkers(List<String> imageFiles, ImagePipeline pipeline, BufferedWriter results, RunManifest manifest) throws IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(nbWorkers);
+        List<Future<ImagePipeline.Analysis>> rows = new ArrayList<>();
+        List<String> previousRows = new ArrayList<>();
+        List<RunManifest.Entry> entries = new ArrayList<>();
+        int nextRow = 0, nbSkipped = 0;
+        try {
+            for (String f: imageFiles) {
+                RunManifest.Entry entry = getEntry(manifest, pipeline, f);
+                entries.add(entry);
+                String previousRow = (entry == null) ? null : pipeline.getPreviousRow(manifest, entry);
+                previousRows.add(previousRow);
+                if (previousRow != null) {
+                    System.out.println(FilenameUtils.getBaseName(f) + " unchanged since last run, skipped");
+                    rows.add(CompletableFuture.completedFuture(null));
+                    nbSkipped++;
+                    continue;
+                }
+
+                // Metadata read once, its reader is handed to the worker
+                ImagePipeline.LoadedImage img;
+                try {
+                    img = pipeline.open(f);
+                } catch (Exception ex) {
+                    CompletableFuture<ImagePipeline.Analysis> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(ex);
+                    rows.add(failed);
+                    continue;
+                }
+                int reserved;
+                try {
+                    reserved = budget.acquire(img.getFootprint());
+                } catch (InterruptedException ex) {
+                    img.closeReader();
+                    throw ex;
+                }
+                rows.add(workers.submit(() -> {
+                    try {
+                        return(pipeline.processImage(img));
+                    } finally {
+                        img.closeReader();
+                        budget.release(reserved);
+                    }
+                }));
+
+                // Write rows of images already done, in order
+                while (nextRow < rows.size() && rows.get(nextRow).isDone()) {
+                    writeRow(results, rows.get(nextRow), previousRows.get(nextRow), imageFiles.get(nextRow), manifest, entries.get(nextRow));
+                    nextRow++;
+                }
+            }
+            while (nextRow < rows.size()) {
+                writeRow(results, rows.get(nextRow), previousRows.get(nextRow), imageFiles.get(nextRow), manifest, entries.get(nextRow));
+                nextRow++;
+            }
+            if (nbSkipped > 0)
+                System.out.println(nbSkipped + " unchanged images skipped");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            Logger.getLogger(BatchRunner.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Manifest entry of image, null without manifest or if image fingerprint cannot be computed
+     */
+    private RunManifest.Entry getEntry(RunManifest manifest, ImagePipeline pipeline, String f) {
+        if (manifest == null)
+            return(null);
+        try {
+            return(manifest.entry(f, pipeline.getRoiFile(f), pipeline.getParameters()));
+        } catch (IOException ex) {
+            Logger.getLogger(BatchRunner.class.getName()).log(Level.WARNING, "Cannot fingerprint "+f, ex);
+            return(null);
+        }
+    }
+
+
+    /**
+     * Write row of skipped image, or wait for image analysis to end, write its results row and record it in manifest
+     * if all its outputs were written
+     */
+    private void writeRow(BufferedWriter results, Future<ImagePipeline.Analysis> analysis, String previousRow, String f, RunManifest manifest,
+            RunManifest.Entry entry) throws IOException, InterruptedException {
+        if (previousRow != null) {
+            results.write(previousRow);
+            results.flush();
+            return;
+        }
+        try {
+            ImagePipeline.Analysis a = analysis.get();
+            results.write(a.getRow());
+            results.flush();
+            if (entry != null && a.isComplete())
+                manifest.put(entry, a.getRow(), a.getOutputs());
+            else if (entry != null)
+                System.out.println("Outputs of " + FilenameUtils.getBaseName(f) + " not all written, it will be analyzed again");
+        } catch (ExecutionException ex) {
+            Logger.getLogger(BatchRunner.class.getName()).log(Level.SEVERE, "Analysis of "+FilenameUtils.getBaseName(f)+" failed", ex.getCause());
+        }
+    }
+
+}
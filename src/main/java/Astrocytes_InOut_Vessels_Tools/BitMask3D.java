@@ -0,0 +1,207 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+
+/**
+ * Bit-packed 3D mask, one long[] per slice, bit i of a slice in word i/64
+ * 1 bit per voxel, logical operations between bit masks and cardinality work on 64 voxels at a time
+ * @author ORION-CIRB
+ */
+public class BitMask3D implements Mask3D {
+
+    private final int width, height, depth;
+    private final long[][] bits;
+
+
+    public BitMask3D(int width, int height, int depth) {
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        bits = new long[depth][(width*height + 63) >>> 6];
+    }
+
+
+    /**
+     * Mask of nonzero voxels of stack
+     */
+    public static BitMask3D fromStack(ImageStack stack) {
+        BitMask3D mask = new BitMask3D(stack.getWidth(), stack.getHeight(), stack.getSize());
+        IntStream.range(0, mask.depth).parallel().forEach(z -> {
+            ImageProcessor ip = stack.getProcessor(z+1);
+            long[] w = mask.bits[z];
+            for (int i = 0; i < ip.getPixelCount(); i++)
+                if (ip.getf(i) != 0)
+                    w[i >>> 6] |= 1L << i;
+        });
+        return(mask);
+    }
+
+
+    @Override
+    public int getWidth() {
+        return(width);
+    }
+
+
+    @Override
+    public int getHeight() {
+        return(height);
+    }
+
+
+    @Override
+    public int getDepth() {
+        return(depth);
+    }
+
+
+    @Override
+    public boolean get(int i, int z) {
+        return((bits[z][i >>> 6] & (1L << i)) != 0);
+    }
+
+
+    @Override
+    public void set(int i, int z, boolean value) {
+        if (value)
+            bits[z][i >>> 6] |= 1L << i;
+        else
+            bits[z][i >>> 6] &= ~(1L << i);
+    }
+
+
+    /**
+     * Words of slice z
+     */
+    long[] getSlice(int z) {
+        return(bits[z]);
+    }
+
+
+    @Override
+    public long cardinality() {
+        long n = 0;
+        for (long[] slice: bits)
+            for (long w: slice)
+                n += Long.bitCount(w);
+        return(n);
+    }
+
+
+    @Override
+    public long cardinality(int z, int from, int to) {
+        if (from >= to)
+            return(0);
+        long[] w = bits[z];
+        int first = from >>> 6, last = (to - 1) >>> 6;
+        long firstMask = -1L << from, lastMask = -1L >>> -to;
+        if (first == last)
+            return(Long.bitCount(w[first] & firstMask & lastMask));
+        long n = Long.bitCount(w[first] & firstMask) + Long.bitCount(w[last] & lastMask);
+        for (int k = first+1; k < last; k++)
+            n += Long.bitCount(w[k]);
+        return(n);
+    }
+
+
+    @Override
+    public int nextSet(int z, int from, int to) {
+        return(next(bits[z], from, to, 0));
+    }
+
+
+    @Override
+    public int nextClear(int z, int from, int to) {
+        return(next(bits[z], from, to, -1L));
+    }
+
+
+    /**
+     * First bit of w in [from, to[ differing from the bits of flip, to if none
+     */
+    private static int next(long[] w, int from, int to, long flip) {
+        if (from >= to)
+            return(to);
+        int k = from >>> 6;
+        long word = (w[k] ^ flip) & (-1L << from);
+        while (word == 0) {
+            k++;
+            if (k << 6 >= to)
+                return(to);
+            word = w[k] ^ flip;
+        }
+        return(Math.min(to, (k << 6) + Long.numberOfTrailingZeros(word)));
+    }
+
+
+    @Override
+    public void setRange(int z, int from, int to) {
+        if (from >= to)
+            return;
+        long[] w = bits[z];
+        int first = from >>> 6, last = (to - 1) >>> 6;
+        long firstMask = -1L << from, lastMask = -1L >>> -to;
+        if (first == last) {
+            w[first] |= firstMask & lastMask;
+            return;
+        }
+        w[first] |= firstMask;
+        Arrays.fill(w, first+1, last, -1L);
+        w[last] |= lastMask;
+    }
+
+
+    @Override
+    public Mask3D and(Mask3D other) {
+        if (!(other instanceof BitMask3D))
+            return(Mask3D.super.and(other));
+        long[][] o = ((BitMask3D) other).bits;
+        IntStream.range(0, depth).parallel().forEach(z -> {
+            for (int k = 0; k < bits[z].length; k++)
+                bits[z][k] &= o[z][k];
+        });
+        return(this);
+    }
+
+
+    @Override
+    public Mask3D or(Mask3D other) {
+        if (!(other instanceof BitMask3D))
+            return(Mask3D.super.or(other));
+        long[][] o = ((BitMask3D) other).bits;
+        IntStream.range(0, depth).parallel().forEach(z -> {
+            for (int k = 0; k < bits[z].length; k++)
+                bits[z][k] |= o[z][k];
+        });
+        return(this);
+    }
+
+
+    @Override
+    public Mask3D andNot(Mask3D other) {
+        if (!(other instanceof BitMask3D))
+            return(Mask3D.super.andNot(other));
+        long[][] o = ((BitMask3D) other).bits;
+        IntStream.range(0, depth).parallel().forEach(z -> {
+            for (int k = 0; k < bits[z].length; k++)
+                bits[z][k] &= ~o[z][k];
+        });
+        return(this);
+    }
+
+
+    /**
+     * Clear voxels set in plane, a 2D mask with the same packing as a slice, in all slices
+     */
+    public void andNotPlane(long[] plane) {
+        IntStream.range(0, depth).parallel().forEach(z -> {
+            for (int k = 0; k < plane.length; k++)
+                bits[z][k] &= ~plane[k];
+        });
+    }
+
+}
@@ -0,0 +1,80 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import ij.ImageStack;
+import java.util.Arrays;
+
+
+/**
+ * 8-bit 3D mask, one byte[] per slice, nonzero where set
+ * Wraps the slices of an 8-bit binary stack without copy, for masks produced by ImageJ commands
+ * @author ORION-CIRB
+ */
+public class ByteMask3D implements Mask3D {
+
+    private final int width, height;
+    private final byte[][] slices;
+
+
+    public ByteMask3D(int width, int height, int depth) {
+        this.width = width;
+        this.height = height;
+        slices = new byte[depth][width*height];
+    }
+
+
+    private ByteMask3D(int width, int height, byte[][] slices) {
+        this.width = width;
+        this.height = height;
+        this.slices = slices;
+    }
+
+
+    /**
+     * Mask of nonzero voxels of stack, sharing its pixels if it is 8-bit
+     */
+    public static Mask3D wrap(ImageStack stack) {
+        if (stack.getBitDepth() != 8)
+            return(BitMask3D.fromStack(stack));
+        byte[][] slices = new byte[stack.getSize()][];
+        for (int z = 0; z < slices.length; z++)
+            slices[z] = (byte[]) stack.getPixels(z+1);
+        return(new ByteMask3D(stack.getWidth(), stack.getHeight(), slices));
+    }
+
+
+    @Override
+    public int getWidth() {
+        return(width);
+    }
+
+
+    @Override
+    public int getHeight() {
+        return(height);
+    }
+
+
+    @Override
+    public int getDepth() {
+        return(slices.length);
+    }
+
+
+    @Override
+    public boolean get(int i, int z) {
+        return(slices[z][i] != 0);
+    }
+
+
+    @Override
+    public void set(int i, int z, boolean value) {
+        slices[z][i] = value ? (byte) 255 : 0;
+    }
+
+
+    @Override
+    public void setRange(int z, int from, int to) {
+        Arrays.fill(slices[z], from, to, (byte) 255);
+    }
+
+}
@@ -0,0 +1,85 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+import java.io.IOException;
+import java.util.Arrays;
+import loci.formats.FormatException;
+import loci.plugins.util.ImageProcessorReader;
+
+
+/**
+ * Open a subset of channels of an image in a single pass over its planes
+ * Only the planes of the requested channels are decoded, in file order
+ * A channel requested several times (e.g. one channel for two roles) is decoded once and copied in each of its images
+ * Channels of RGB or interleaved planes are the samples of the planes, as split by Bio-Formats
+ * Decoding time and voxels are reported by the caller's instrumentation stage
+ * @author ORION-CIRB
+ */
+public class ChannelLoader {
+
+    /**
+     * Open channels chIndexes of the first timepoint of the image set in reader
+     * Returned images are in the same order as chIndexes
+     */
+    public ImagePlus[] openChannels(ImageProcessorReader reader, String title, int[] chIndexes, Calibration cal) throws FormatException, IOException {
+        return(openChannels(reader, title, chIndexes, cal, 0, reader.getSizeZ()));
+    }
+
+
+    /**
+     * Open slices [zStart, zEnd[ of channels chIndexes of the first timepoint of the image set in reader
+     */
+    public ImagePlus[] openChannels(ImageProcessorReader reader, String title, int[] chIndexes, Calibration cal, int zStart, int zEnd) throws FormatException, IOException {
+        int width = reader.getSizeX();
+        int height = reader.getSizeY();
+        int nSlices = zEnd - zStart;
+        // Samples per plane, channel c is sample c % rgb of the planes of effective channel c / rgb
+        int rgb = Math.max(1, reader.getRGBChannelCount());
+
+        // Map each channel of the file to its positions in the returned array
+        int[][] chPos = new int[reader.getSizeC()][0];
+        ImageStack[] stacks = new ImageStack[chIndexes.length];
+        for (int i = 0; i < chIndexes.length; i++) {
+            int[] pos = chPos[chIndexes[i]];
+            chPos[chIndexes[i]] = Arrays.copyOf(pos, pos.length + 1);
+            chPos[chIndexes[i]][pos.length] = i;
+            stacks[i] = new ImageStack(width, height, nSlices);
+        }
+
+        // Walk planes in file order and decode only the wanted ones
+        for (int no = 0; no < reader.getImageCount(); no++) {
+            int[] zct = reader.getZCTCoords(no);
+            if (zct[2] != 0 || zct[0] < zStart || zct[0] >= zEnd || !isWanted(chPos, zct[1], rgb))
+                continue;
+            ImageProcessor[] ips = reader.openProcessors(no);
+            for (int s = 0; s < rgb; s++) {
+                int[] pos = chPos[zct[1]*rgb + s];
+                for (int p = 0; p < pos.length; p++)
+                    stacks[pos[p]].setProcessor((p == 0) ? ips[s] : ips[s].duplicate(), zct[0] - zStart + 1);
+            }
+        }
+
+        ImagePlus[] imgs = new ImagePlus[chIndexes.length];
+        for (int i = 0; i < chIndexes.length; i++) {
+            imgs[i] = new ImagePlus(title + "-C" + chIndexes[i], stacks[i]);
+            imgs[i].setDimensions(1, nSlices, 1);
+            imgs[i].setCalibration(cal);
+        }
+        return(imgs);
+    }
+
+
+    /**
+     * Whether a channel of the samples of effective channel c is wanted
+     */
+    private boolean isWanted(int[][] chPos, int c, int rgb) {
+        for (int s = 0; s < rgb; s++)
+            if (chPos[c*rgb + s].length > 0)
+                return(true);
+        return(false);
+    }
+
+}
@@ -0,0 +1,228 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.AutoThresholder;
+import ij.process.FloatProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.formats.FormatException;
+import loci.plugins.util.ImageProcessorReader;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+
+
+/**
+ * Analysis of an image too large for the heap, in slabs of Z slices
+ * Full size intermediates are spilled to temporary files, only a slab (plus its halo) of each is in memory at a time:
+ *   1. vessels LoG and microglia median of each slab are spilled, and their stack min/max accumulated
+ *   2. stack histograms are accumulated from the spills, giving the same thresholds as on the whole stack
+ *   3. vessels and astrocytes of each slab are binarized and labelled, labels are stitched across slabs
+ *      and components are filtered on their whole volume
+ *   4. each slab with a halo of slices is dilated with a distance transform, voxels are counted and classified for the drawing
+ * LoG and median are 2D, so the halo only comes from the dilation: ceil(dilVessel / pixelDepth) slices
+ * Volumes are exact. Dilation is done as in "distance" mode, and thresholds as with the "cpu" backend,
+ * ImagePipeline only analyzes images in slabs with these parameters
+ * Spills are written in a temporary folder of spillDir (results folder if not set), deleted at the end
+ * @author ORION-CIRB
+ */
+public class ChunkedPipeline {
+
+    private final Tools tools;
+    private final Parameters params;
+    private final int[] chIndexes;
+    private final String imageDir;
+    private final String outDirResults;
+    private final int slabSlices;
+
+
+    public ChunkedPipeline(Tools tools, Parameters params, int[] chIndexes, String imageDir, String outDirResults, int slabSlices) {
+        this.tools = tools;
+        this.params = params;
+        this.chIndexes = chIndexes;
+        this.imageDir = imageDir;
+        this.outDirResults = outDirResults;
+        this.slabSlices = Math.max(1, slabSlices);
+    }
+
+
+    /**
+     * Number of slices of halo needed on each side of a slab
+     * LoG and median filters are 2D and need none, the dilation needs its radius in slices
+     */
+    public int getHalo() {
+        return((int) Math.ceil(params.dilVessel / params.pixelDepth));
+    }
+
+
+    /**
+     * Analyze image f slab by slab with its opened reader, closed at the end, save its drawing and return its results row
+     */
+    public String processImage(String f, ImageProcessorReader reader) throws DependencyException, ServiceException, FormatException, IOException {
+        File tmpDir = null;
+        try {
+            tmpDir = createSpillDir(FilenameUtils.getBaseName(f));
+            return(processImage(f, reader, tmpDir));
+        } finally {
+            reader.close();
+            FileUtils.deleteQuietly(tmpDir);
+        }
+    }
+
+
+    /**
+     * Temporary folder of spill files of image rootName, in spillDir or results folder
+     */
+    private File createSpillDir(String rootName) throws IOException {
+        File spillDir = new File(params.spillDir.isEmpty() ? outDirResults : params.spillDir);
+        spillDir.mkdirs();
+        return(Files.createTempDirectory(spillDir.toPath(), "spill_" + rootName).toFile());
+    }
+
+
+    private String processImage(String f, ImageProcessorReader reader, File tmpDir) throws DependencyException, ServiceException, FormatException, IOException {
+        String rootName = FilenameUtils.getBaseName(f);
+        tools.print("--- ANALYZING IMAGE " + rootName + " in slabs of " + slabSlices + " slices ------");
+        int width = reader.getSizeX(), height = reader.getSizeY(), depth = reader.getSizeZ();
+        int size = width * height;
+        RoiMask roiMask = new RoiMask(tools.loadRois(imageDir, rootName), width, height);
+        ChannelLoader loader = new ChannelLoader();
+        try (SliceSpill logSpill = new SliceSpill(tmpDir, "log", size, 4);
+             SliceSpill microSpill = new SliceSpill(tmpDir, "micro", size, 4);
+             SliceSpill vesselSpill = new SliceSpill(tmpDir, "vessels", size, 4);
+             SliceSpill astroSpill = new SliceSpill(tmpDir, "astro", size, 4);
+             SliceSpill classSpill = new SliceSpill(tmpDir, "classes", size, 1)) {
+
+            // 1. Filter vessels and microglia channels
+            tools.print("- Filtering microglia and vessels channels -");
+            float[] logMinMax = null, microMinMax = null;
+            for (int z0 = 0; z0 < depth; z0 += slabSlices) {
+                int z1 = Math.min(depth, z0 + slabSlices);
+                ImagePlus[] imgs = loader.openChannels(reader, rootName, new int[] {chIndexes[0], chIndexes[1]}, params.getCalibration(), z0, z1);
+                ImageStack log = tools.filterVessels(imgs[0]).getStack();
+                ImageStack micro = tools.filterMicroglia(imgs[1]).getStack();
+                logMinMax = CpuThreshold.minMax(log, logMinMax);
+                microMinMax = CpuThreshold.minMax(micro, microMinMax);
+                for (int z = z0; z < z1; z++) {
+                    logSpill.writeFloats(z, (float[]) log.getProcessor(z-z0+1).getPixels());
+                    microSpill.writeFloats(z, (float[]) micro.getProcessor(z-z0+1).convertToFloat().getPixels());
+                }
+                tools.flushCloseImg(imgs[0]);
+                tools.flushCloseImg(imgs[1]);
+            }
+
+            // 2. Stack histograms and thresholds
+            int[] logHisto = null, microHisto = null;
+            for (int z0 = 0; z0 < depth; z0 += slabSlices) {
+                int z1 = Math.min(depth, z0 + slabSlices);
+                logHisto = CpuThreshold.histogram(readFloats(logSpill, z0, z1, width, height), logMinMax, logHisto);
+                microHisto = CpuThreshold.histogram(readFloats(microSpill, z0, z1, width, height), microMinMax, microHisto);
+            }
+            int logTh = new AutoThresholder().getThreshold(params.vesselThMethod, logHisto);
+            int microTh = new AutoThresholder().getThreshold(params.microThMethod, microHisto);
+
+            // 3. Binarize and label vessels and astrocytes, slab by slab
+            tools.print("- Detecting vessels and astrocytes -");
+            StitchedComponents vessels = new StitchedComponents(width, height);
+            StitchedComponents astros = new StitchedComponents(width, height);
+            for (int z0 = 0; z0 < depth; z0 += slabSlices) {
+                int z1 = Math.min(depth, z0 + slabSlices);
+                Mask3D vesselMask = CpuThreshold.binarize(readFloats(logSpill, z0, z1, width, height), logMinMax, logTh);
+                vesselMask.andNot(CpuThreshold.binarize(readFloats(microSpill, z0, z1, width, height), microMinMax, microTh));
+                roiMask.clear(vesselMask);
+                labelSlab(vessels, vesselMask, vesselSpill, z0);
+
+                ImagePlus imgAstro = loader.openChannels(reader, rootName, new int[] {chIndexes[2]}, params.getCalibration(), z0, z1)[0];
+                ImagePlus imgAstroMed = tools.filterAstrocytes(imgAstro);
+                tools.binarizeAstrocytes(imgAstroMed, roiMask, params.astroThMethod, params);
+                labelSlab(astros, ByteMask3D.wrap(imgAstroMed.getStack()), astroSpill, z0);
+                tools.flushCloseImg(imgAstroMed);
+                tools.flushCloseImg(imgAstro);
+            }
+            vessels.filter(params.minVesselVol, Double.MAX_VALUE, params.pixVol);
+            astros.filter(params.minAstroVol, Double.MAX_VALUE, params.pixVol);
+            System.out.println("Nb vessels detected:"+vessels.getNbDetected());
+            System.out.println("Nb vessels remaining after size filtering: "+ vessels.getNbKept());
+            System.out.println("Nb astrocytic objects detected:"+astros.getNbDetected());
+            System.out.println("Nb astrocytic objects remaining after size filtering: "+ astros.getNbKept());
+
+            // 4. Dilate vessels, with a halo of slices around each slab, and classify voxels
+            tools.print("- Finding astrocytes in and out of vessels -");
+            int halo = getHalo();
+            float dil2 = (float) params.dilVessel * params.dilVessel;
+            LabelHistograms histograms = new LabelHistograms();
+            for (int z0 = 0; z0 < depth; z0 += slabSlices) {
+                int z1 = Math.min(depth, z0 + slabSlices);
+                int h0 = Math.max(0, z0 - halo), h1 = Math.min(depth, z1 + halo);
+                int[][] features = new int[h1 - h0][];
+                for (int z = h0; z < h1; z++) {
+                    int[] lab = vesselSpill.readInts(z);
+                    for (int i = 0; i < size; i++)
+                        lab[i] = vessels.isKept(lab[i]) ? 1 : 0;
+                    features[z - h0] = lab;
+                }
+                DistanceTransform edt = new DistanceTransform(width, height, h1 - h0, params.pixelWidth, params.pixelDepth);
+                edt.compute(features);
+                for (int z = z0; z < z1; z++) {
+                    float[] d = edt.getSquaredDistances(z - h0);
+                    int[] vessel = features[z - h0];
+                    int[] astro = astroSpill.readInts(z);
+                    int[] dilated = new int[size];
+                    byte[] classes = new byte[size];
+                    for (int i = 0; i < size; i++) {
+                        if (d[i] <= dil2)
+                            dilated[i] = 1;
+                        if (vessel[i] != 0)
+                            classes[i] |= OverlayWriter.VESSEL;
+                        if (!astros.isKept(astro[i]))
+                            astro[i] = 0;
+                        else
+                            classes[i] |= (dilated[i] != 0) ? OverlayWriter.ASTRO_IN : OverlayWriter.ASTRO_OUT;
+                    }
+                    histograms.accumulate(vessel, dilated, astro, roiMask.getArea());
+                    classSpill.writeBytes(z, classes);
+                }
+            }
+
+            // Draw results, slices are generated from spill while the file is written
+            tools.print("- Drawing and writing results -");
+            if (params.exportObjects)
+                tools.print("Per-object results are not exported for images analyzed in slabs");
+            if (params.hasProfile())
+                tools.print("Distance profiles are not computed for images analyzed in slabs");
+            OverlayWriter overlays = new OverlayWriter(params);
+            if (overlays.isEnabled())
+                overlays.write(classSpill::readBytes, width, height, depth, new File(outDirResults + rootName + ".tif"));
+
+            return(new MeasurementEngine().getRow(rootName, histograms, params));
+        }
+    }
+
+
+    /**
+     * Slices [z0, z1[ of a float spill
+     */
+    private ImageStack readFloats(SliceSpill spill, int z0, int z1, int width, int height) throws IOException {
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = z0; z < z1; z++)
+            stack.addSlice(new FloatProcessor(width, height, spill.readFloats(z)));
+        return(stack);
+    }
+
+
+    /**
+     * Label mask of slab starting at slice z0, add it to stitched components and spill its stack-wide labels
+     */
+    private void labelSlab(StitchedComponents components, Mask3D bin, SliceSpill spill, int z0) throws IOException {
+        ConnectedComponents cc = new ConnectedComponents(bin.getWidth(), bin.getHeight(), bin.getDepth());
+        cc.compute(bin, 0, Double.MAX_VALUE, params.pixVol);
+        int[][] labels = cc.getLabels();
+        components.addSlab(labels, cc.getVoxelCounts());
+        for (int z = 0; z < labels.length; z++)
+            spill.writeInts(z0 + z, labels[z]);
+    }
+
+}
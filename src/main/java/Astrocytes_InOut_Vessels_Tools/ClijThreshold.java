@@ -0,0 +1,54 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import ij.ImagePlus;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.CLIJ2;
+
+
+/**
+ * Threshold using CLIJ2
+ * CLIJ2 instance is shared by all images analyzed in parallel, so calls are serialized
+ * Binary image is created 8-bit on the GPU, whatever the bit depth of the source
+ * @author ORION-CIRB
+ */
+public class ClijThreshold implements ThresholdBackend {
+
+    private final CLIJ2 clij2 = CLIJ2.getInstance();
+
+
+    @Override
+    public synchronized ImagePlus threshold(ImagePlus img, String thMed) {
+        ClearCLBuffer imgCL = clij2.push(img);
+        ClearCLBuffer imgCLBin = clij2.create(imgCL.getDimensions(), NativeTypeEnum.UnsignedByte);
+        clij2.automaticThreshold(imgCL, imgCLBin, thMed);
+        ImagePlus imgBin = clij2.pull(imgCLBin);
+        clij2.release(imgCL);
+        clij2.release(imgCLBin);
+        return(imgBin);
+    }
+
+
+    @Override
+    public String getName() {
+        return("clij");
+    }
+
+
+    public String getDeviceName() {
+        return(clij2.getGPUName());
+    }
+
+
+    /**
+     * Check that OpenCL device is not a CPU driver
+     */
+    public boolean isOnGPU() {
+        String device = getDeviceName();
+        if (device == null)
+            return(false);
+        device = device.toLowerCase();
+        return(!(device.contains("cpu") || device.contains("pthread") || device.contains("pocl")));
+    }
+
+}
@@ -0,0 +1,294 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+
+/**
+ * 26-connected components labelling of the nonzero voxels of a stack, with size filtering
+ * Z slabs are labelled in parallel with union-find, then merged across slab boundaries
+ * Voxels are counted in the same pass, so that components out of the volume range are dropped before any object is built
+ * Kept components are labelled 1..n in the raster order of their first voxel
+ * @author ORION-CIRB
+ */
+public class ConnectedComponents {
+
+    private final int width, height, depth;
+    private int[][] labels;
+    private long[] voxelCounts;
+    private int nbDetected;
+
+
+    public ConnectedComponents(int width, int height, int depth) {
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+    }
+
+
+    /**
+     * Label components of nonzero voxels of stack with a volume in [minVol, maxVol]
+     */
+    public void compute(ImageStack stack, double minVol, double maxVol, double pixVol) {
+        compute(ByteMask3D.wrap(stack), minVol, maxVol, pixVol);
+    }
+
+
+    /**
+     * Label components of mask with a volume in [minVol, maxVol]
+     */
+    public void compute(Mask3D mask, double minVol, double maxVol, double pixVol) {
+        labels = new int[depth][];
+        int nbSlabs = Math.max(1, Math.min(depth, Runtime.getRuntime().availableProcessors()));
+        Slab[] slabs = new Slab[nbSlabs];
+        IntStream.range(0, nbSlabs).parallel().forEach(s -> {
+            slabs[s] = new Slab(s * depth / nbSlabs, (s+1) * depth / nbSlabs);
+            slabs[s].label(mask);
+        });
+
+        // Global union-find, slab provisional labels are offset to be unique
+        int total = 0;
+        for (Slab slab: slabs) {
+            slab.offset = total;
+            total += slab.nbLabels;
+        }
+        int[] parent = new int[total + 1];
+        long[] count = new long[total + 1];
+        for (Slab slab: slabs) {
+            for (int l = 1; l <= slab.nbLabels; l++) {
+                parent[l + slab.offset] = slab.find(l) + slab.offset;
+                count[l + slab.offset] = slab.count[l];
+            }
+        }
+        for (int s = 1; s < nbSlabs; s++) {
+            int z = slabs[s].zStart;
+            if (z == 0 || z >= depth)
+                continue;
+            linkSlices(parent, labels[z], slabs[s].offset, labels[z-1], slabs[s-1].offset, width, height);
+        }
+
+        // Component sizes at roots, keep components in volume range
+        for (int l = 1; l <= total; l++) {
+            int root = find(parent, l);
+            if (root != l)
+                count[root] += count[l];
+        }
+        int[] finalLabel = new int[total + 1];
+        long[] kept = new long[total];
+        int nbKept = 0;
+        nbDetected = 0;
+        for (int l = 1; l <= total; l++) {
+            if (parent[l] != l)
+                continue;
+            nbDetected++;
+            double vol = count[l] * pixVol;
+            if (vol >= minVol && vol <= maxVol) {
+                finalLabel[l] = ++nbKept;
+                kept[nbKept-1] = count[l];
+            }
+        }
+        for (int l = 1; l <= total; l++)
+            finalLabel[l] = finalLabel[find(parent, l)];
+        voxelCounts = Arrays.copyOf(kept, nbKept);
+
+        // Relabel
+        IntStream.range(0, nbSlabs).parallel().forEach(s -> {
+            for (int z = slabs[s].zStart; z < slabs[s].zEnd; z++) {
+                int[] lab = labels[z];
+                for (int i = 0; i < lab.length; i++)
+                    if (lab[i] != 0)
+                        lab[i] = finalLabel[lab[i] + slabs[s].offset];
+            }
+        });
+    }
+
+
+    /**
+     * Merge sets of 26-connected labels of two consecutive slices, labels of each slice being offset to be unique
+     */
+    static void linkSlices(int[] parent, int[] cur, int off, int[] prev, int offPrev, int width, int height) {
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int l = cur[x + y*width];
+                if (l == 0)
+                    continue;
+                for (int dy = Math.max(0, y-1); dy <= Math.min(height-1, y+1); dy++)
+                    for (int dx = Math.max(0, x-1); dx <= Math.min(width-1, x+1); dx++) {
+                        int n = prev[dx + dy*width];
+                        if (n != 0)
+                            union(parent, l + off, n + offPrev);
+                    }
+            }
+        }
+    }
+
+
+    static int find(int[] parent, int l) {
+        while (parent[l] != l) {
+            parent[l] = parent[parent[l]];
+            l = parent[l];
+        }
+        return(l);
+    }
+
+
+    /**
+     * Merge sets of a and b, smaller label becomes root
+     */
+    static void union(int[] parent, int a, int b) {
+        int ra = find(parent, a), rb = find(parent, b);
+        if (ra < rb)
+            parent[rb] = ra;
+        else if (rb < ra)
+            parent[ra] = rb;
+    }
+
+
+    /**
+     * Provisional labelling of slices [zStart, zEnd[
+     */
+    private class Slab {
+
+        final int zStart, zEnd;
+        int[] parent = new int[1024];
+        long[] count = new long[1024];
+        int nbLabels = 0;
+        int offset;
+
+
+        Slab(int zStart, int zEnd) {
+            this.zStart = zStart;
+            this.zEnd = zEnd;
+        }
+
+
+        int find(int l) {
+            return(ConnectedComponents.find(parent, l));
+        }
+
+
+        int newLabel() {
+            nbLabels++;
+            if (nbLabels >= parent.length) {
+                parent = Arrays.copyOf(parent, 2*parent.length);
+                count = Arrays.copyOf(count, 2*count.length);
+            }
+            parent[nbLabels] = nbLabels;
+            return(nbLabels);
+        }
+
+
+        /**
+         * Raster scan, each voxel is connected to its 13 already visited neighbours of the slab
+         */
+        void label(Mask3D mask) {
+            for (int z = zStart; z < zEnd; z++) {
+                int[] cur = new int[width*height];
+                int[] prev = (z > zStart) ? labels[z-1] : null;
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        int i = x + y*width;
+                        if (!mask.get(i, z))
+                            continue;
+                        int l = 0;
+                        // Previous slice
+                        if (prev != null)
+                            for (int dy = Math.max(0, y-1); dy <= Math.min(height-1, y+1); dy++)
+                                for (int dx = Math.max(0, x-1); dx <= Math.min(width-1, x+1); dx++)
+                                    l = merge(l, prev[dx + dy*width]);
+                        // Previous row
+                        if (y > 0)
+                            for (int dx = Math.max(0, x-1); dx <= Math.min(width-1, x+1); dx++)
+                                l = merge(l, cur[dx + (y-1)*width]);
+                        // Previous voxel
+                        if (x > 0)
+                            l = merge(l, cur[i-1]);
+                        if (l == 0)
+                            l = newLabel();
+                        cur[i] = l;
+                        count[l]++;
+                    }
+                }
+                labels[z] = cur;
+            }
+        }
+
+
+        /**
+         * Merge neighbour label n into current label l, return label of the voxel
+         */
+        private int merge(int l, int n) {
+            if (n == 0)
+                return(l);
+            if (l == 0)
+                return(n);
+            if (l != n)
+                ConnectedComponents.union(parent, l, n);
+            return(l);
+        }
+    }
+
+
+    /**
+     * Number of components before size filtering
+     */
+    public int getNbDetected() {
+        return(nbDetected);
+    }
+
+
+    /**
+     * Number of components kept after size filtering
+     */
+    public int getNbKept() {
+        return(voxelCounts.length);
+    }
+
+
+    /**
+     * Labels of each slice, 0 for background
+     */
+    public int[][] getLabels() {
+        return(labels);
+    }
+
+
+    /**
+     * Number of voxels of component of label l+1 at index l
+     */
+    public long[] getVoxelCounts() {
+        return(voxelCounts);
+    }
+
+
+    /**
+     * Label image, 16-bit if labels fit in it, 32-bit otherwise
+     */
+    public ImagePlus getLabelImage(String title, Calibration cal) {
+        boolean is16 = getNbKept() < 65536;
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) {
+            int[] lab = labels[z];
+            if (is16) {
+                short[] pixels = new short[lab.length];
+                for (int i = 0; i < lab.length; i++)
+                    pixels[i] = (short) lab[i];
+                stack.addSlice(new ShortProcessor(width, height, pixels, null));
+            } else {
+                float[] pixels = new float[lab.length];
+                for (int i = 0; i < lab.length; i++)
+                    pixels[i] = lab[i];
+                stack.addSlice(new FloatProcessor(width, height, pixels));
+            }
+        }
+        ImagePlus img = new ImagePlus(title, stack);
+        img.setCalibration(cal);
+        return(img);
+    }
+
+}
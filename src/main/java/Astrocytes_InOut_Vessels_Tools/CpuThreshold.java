@@ -0,0 +1,130 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.AutoThresholder;
+import ij.process.ImageProcessor;
+import java.util.stream.IntStream;
+
+
+/**
+ * Threshold on CPU, in pure Java, with the same histogram and threshold value as CLIJ2 automaticThreshold
+ * Stack min/max, histogram and binarization are computed slice by slice in parallel
+ * They can also be accumulated over parts of a stack, to threshold a stack analyzed in chunks
+ * @author ORION-CIRB
+ */
+public class CpuThreshold implements ThresholdBackend {
+
+    private static final int NB_BINS = 256;
+
+
+    @Override
+    public ImagePlus threshold(ImagePlus img, String method) {
+        ImagePlus imgBin = thresholdMask(img, method).toImagePlus(img.getTitle() + "_bin", 1);
+        imgBin.setCalibration(img.getCalibration());
+        return(imgBin);
+    }
+
+
+    /**
+     * Binarize directly into a bit-packed mask, without 8-bit intermediate
+     */
+    @Override
+    public Mask3D thresholdMask(ImagePlus img, String method) {
+        ImageStack stack = img.getStack();
+        float[] minMax = minMax(stack, null);
+        int[] histo = histogram(stack, minMax, null);
+        int th = new AutoThresholder().getThreshold(method, histo);
+        return(binarize(stack, minMax, th));
+    }
+
+
+    /**
+     * Min and max of stack, merged with minMax if not null
+     * Calling it on successive parts of a stack gives the min and max of the whole stack
+     */
+    static float[] minMax(ImageStack stack, float[] minMax) {
+        int nSlices = stack.getSize();
+        float[][] sliceMinMax = new float[nSlices][];
+        IntStream.range(0, nSlices).parallel().forEach(z -> {
+            ImageProcessor ip = stack.getProcessor(z+1);
+            float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+            for (int i = 0; i < ip.getPixelCount(); i++) {
+                float v = ip.getf(i);
+                if (v < min) min = v;
+                if (v > max) max = v;
+            }
+            sliceMinMax[z] = new float[] {min, max};
+        });
+        float[] res = (minMax == null) ? new float[] {Float.MAX_VALUE, -Float.MAX_VALUE} : minMax;
+        for (float[] mm: sliceMinMax) {
+            res[0] = Math.min(res[0], mm[0]);
+            res[1] = Math.max(res[1], mm[1]);
+        }
+        return(res);
+    }
+
+
+    /**
+     * Histogram of stack in NB_BINS bins between minMax values, added to histo if not null
+     * As in CLIJ2, bin k is centered on min + k * (max - min) / (NB_BINS - 1)
+     */
+    static int[] histogram(ImageStack stack, float[] minMax, int[] histo) {
+        int nSlices = stack.getSize();
+        float stackMin = minMax[0], range = minMax[1] - minMax[0];
+        int[][] sliceHistos = new int[nSlices][];
+        IntStream.range(0, nSlices).parallel().forEach(z -> {
+            ImageProcessor ip = stack.getProcessor(z+1);
+            int[] h = new int[NB_BINS];
+            for (int i = 0; i < ip.getPixelCount(); i++)
+                h[bin(ip.getf(i), stackMin, range)]++;
+            sliceHistos[z] = h;
+        });
+        int[] res = (histo == null) ? new int[NB_BINS] : histo;
+        for (int[] h: sliceHistos)
+            for (int b = 0; b < NB_BINS; b++)
+                res[b] += h[b];
+        return(res);
+    }
+
+
+    /**
+     * Mask of voxels at or above the grey level of threshold bin th
+     */
+    static BitMask3D binarize(ImageStack stack, float[] minMax, int th) {
+        float value = thresholdValue(minMax, th);
+        BitMask3D mask = new BitMask3D(stack.getWidth(), stack.getHeight(), stack.getSize());
+        IntStream.range(0, stack.getSize()).parallel().forEach(z -> {
+            ImageProcessor ip = stack.getProcessor(z+1);
+            for (int i = 0; i < ip.getPixelCount(); i++)
+                if (ip.getf(i) >= value)
+                    mask.set(i, z, true);
+        });
+        return(mask);
+    }
+
+
+    /**
+     * Grey level of threshold bin th, computed in float as CLIJ2 does: min + (th + 1) / NB_BINS * (max - min)
+     */
+    static float thresholdValue(float[] minMax, int th) {
+        return(minMax[0] + ((th + 1) / (float) NB_BINS) * (minMax[1] - minMax[0]));
+    }
+
+
+    /**
+     * Bin of v, rounded as in CLIJ2 histogram kernel, 0 if stack is constant
+     */
+    private static int bin(float v, float min, float range) {
+        if (!(range > 0))
+            return(0);
+        return(Math.max(0, Math.min(NB_BINS - 1, (int) ((v - min) * (NB_BINS - 1) / range + 0.5f))));
+    }
+
+
+    @Override
+    public String getName() {
+        return("cpu");
+    }
+
+}
@@ -0,0 +1,218 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+
+/**
+ * Astrocytes volume and intensity as a function of distance to vessels, from one distance transform of vessels labels
+ * Bin 0 holds voxels inside vessels, bin k voxels at a distance in ]edges[k-1], edges[k]] µm (edges[-1] = 0),
+ * the last bin voxels farther than the last edge
+ * Every voxel outside ROIs is counted in the bin of its distance and under its nearest vessel, astrocytes voxels also
+ * add their intensity, so that coverage of each shell around each vessel follows from one pass over the image
+ * Rows are written in results folder Profiles/, as rootName_profile.xls
+ * @author ORION-CIRB
+ */
+public class DistanceProfile {
+
+    public static final String HEADER = "Image name\tVessel\tDistance bin (µm)\tShell vol (µm3)\tAstrocytes vol (µm3)\tAstrocytes coverage\tAstrocytes mean intensity\n";
+
+    private final double[] edges;
+    private final float[] edges2;
+    private final int nbBins;
+
+
+    /**
+     * Profile with bin upper edges in µm, sorted in increasing order
+     */
+    public DistanceProfile(double[] edges) {
+        this.edges = edges;
+        this.nbBins = edges.length + 2;
+        this.edges2 = new float[edges.length];
+        for (int e = 0; e < edges.length; e++)
+            edges2[e] = (float) (edges[e] * edges[e]);
+    }
+
+
+    /**
+     * Voxel counts and astrocytes intensity sums per nearest vessel label and bin, index label * nbBins + bin
+     */
+    public static class Counts {
+        long[] shellVoxels = new long[0], astroVoxels = new long[0];
+        double[] astroIntensity = new double[0];
+
+        Counts add(Counts other) {
+            int n = Math.max(shellVoxels.length, other.shellVoxels.length);
+            shellVoxels = Arrays.copyOf(shellVoxels, n);
+            astroVoxels = Arrays.copyOf(astroVoxels, n);
+            astroIntensity = Arrays.copyOf(astroIntensity, n);
+            for (int i = 0; i < other.shellVoxels.length; i++) {
+                shellVoxels[i] += other.shellVoxels[i];
+                astroVoxels[i] += other.astroVoxels[i];
+                astroIntensity[i] += other.astroIntensity[i];
+            }
+            return(this);
+        }
+
+        // n and sizes are multiples of the number of bins
+        void grow(int n) {
+            if (n <= shellVoxels.length)
+                return;
+            n = Math.max(2 * shellVoxels.length, n);
+            shellVoxels = Arrays.copyOf(shellVoxels, n);
+            astroVoxels = Arrays.copyOf(astroVoxels, n);
+            astroIntensity = Arrays.copyOf(astroIntensity, n);
+        }
+    }
+
+
+    /**
+     * Distance transform of vessels labels, shared with other measures of the image
+     */
+    public static DistanceTransform vesselsDistance(ImagePlus imgVesselLabels, Parameters params) {
+        DistanceTransform edt = new DistanceTransform(imgVesselLabels.getWidth(), imgVesselLabels.getHeight(), imgVesselLabels.getNSlices(),
+                params.pixelWidth, params.pixelDepth);
+        edt.compute(imgVesselLabels.getStack());
+        return(edt);
+    }
+
+
+    /**
+     * Counts of astrocytes population, with intensities of imgAstro (may be null) and ROIs of roiMask excluded
+     * Slabs of slices are counted in parallel
+     */
+    public Counts measure(DistanceTransform edt, RunLengthPopulation astrocytesPop, ImagePlus imgAstro, RoiMask roiMask) {
+        int[][] astroRuns = astrocytesPop.getSliceRuns();
+        int depth = astroRuns.length;
+        ImageStack astroStack = (imgAstro == null) ? null : imgAstro.getStack();
+
+        int nbSlabs = Math.max(1, Math.min(depth, Runtime.getRuntime().availableProcessors()));
+        Counts[] slabs = new Counts[nbSlabs];
+        IntStream.range(0, nbSlabs).parallel().forEach(s -> {
+            Counts c = new Counts();
+            for (int z = s * depth / nbSlabs; z < (s+1) * depth / nbSlabs; z++) {
+                float[] d2 = edt.getSquaredDistances(z);
+                int[] labels = edt.getLabels(z);
+                for (int i = 0; i < d2.length; i++) {
+                    if (roiMask.isEmpty() || !roiMask.contains(i)) {
+                        c.grow((labels[i] + 1) * nbBins);
+                        int index = labels[i] * nbBins + getBin(d2[i]);
+                        c.shellVoxels[index]++;
+                    }
+                }
+                int[] runs = astroRuns[z];
+                ImageProcessor ip = (astroStack == null) ? null : astroStack.getProcessor(z+1);
+                for (int r = 0; r < runs.length; r += 3) {
+                    for (int i = runs[r+1]; i < runs[r+2]; i++) {
+                        if (!roiMask.isEmpty() && roiMask.contains(i))
+                            continue;
+                        c.grow((labels[i] + 1) * nbBins);
+                        int index = labels[i] * nbBins + getBin(d2[i]);
+                        c.astroVoxels[index]++;
+                        if (ip != null)
+                            c.astroIntensity[index] += ip.getf(i);
+                    }
+                }
+            }
+            slabs[s] = c;
+        });
+
+        Counts counts = new Counts();
+        for (Counts slab: slabs)
+            counts.add(slab);
+        return(counts);
+    }
+
+
+    /**
+     * Bin of squared distance d2
+     */
+    private int getBin(float d2) {
+        if (d2 == 0)
+            return(0);
+        for (int e = 0; e < edges2.length; e++)
+            if (d2 <= edges2[e])
+                return(e + 1);
+        return(nbBins - 1);
+    }
+
+
+    private String getBinName(int bin) {
+        if (bin == 0)
+            return("in vessels");
+        if (bin == nbBins - 1)
+            return("> " + edges[edges.length - 1]);
+        return(((bin == 1) ? 0 : edges[bin - 2]) + "-" + edges[bin - 1]);
+    }
+
+
+    /**
+     * Rows of image imgName: all vessels together, then each vessel
+     */
+    public String getTable(String imgName, Counts counts, Parameters params) {
+        int nbLabels = counts.shellVoxels.length / nbBins;
+        long[] shell = new long[nbBins], astro = new long[nbBins];
+        double[] intensity = new double[nbBins];
+        for (int i = 0; i < nbLabels * nbBins; i++) {
+            shell[i % nbBins] += counts.shellVoxels[i];
+            astro[i % nbBins] += counts.astroVoxels[i];
+            intensity[i % nbBins] += counts.astroIntensity[i];
+        }
+        StringBuilder table = new StringBuilder();
+        appendRows(table, imgName, "all", shell, astro, intensity, 0, params);
+        for (int l = 1; l < nbLabels; l++)
+            if (counts.shellVoxels[l * nbBins] != 0)
+                appendRows(table, imgName, Integer.toString(l), counts.shellVoxels, counts.astroVoxels, counts.astroIntensity, l * nbBins, params);
+        return(table.toString());
+    }
+
+
+    private void appendRows(StringBuilder table, String imgName, String vessel, long[] shell, long[] astro, double[] intensity,
+            int offset, Parameters params) {
+        for (int b = 0; b < nbBins; b++) {
+            long s = shell[offset + b], a = astro[offset + b];
+            table.append(imgName).append('\t').append(vessel).append('\t').append(getBinName(b))
+                .append('\t').append(s * params.pixVol).append('\t').append(a * params.pixVol)
+                .append('\t').append((s == 0) ? Double.NaN : (double) a / s)
+                .append('\t').append((a == 0) ? Double.NaN : intensity[offset + b] / a).append('\n');
+        }
+    }
+
+
+    /**
+     * Write table of image rootName in Profiles folder of outDirResults
+     */
+    public static void write(String table, String outDirResults, String rootName) throws IOException {
+        File file = getFile(outDirResults, rootName);
+        file.getParentFile().mkdirs();
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+            writer.write(HEADER);
+            writer.write(table);
+        }
+    }
+
+
+    /**
+     * Profile file of image rootName
+     */
+    public static File getFile(String outDirResults, String rootName) {
+        return(new File(new File(outDirResults, "Profiles"), rootName + "_profile.xls"));
+    }
+
+
+    /**
+     * Bin edges of a comma-separated list of distances in µm, sorted, empty list if none
+     */
+    public static double[] parseEdges(String list) {
+        return(Arrays.stream(list.split(",")).map(String::trim).filter(e -> !e.isEmpty())
+                .mapToDouble(Double::parseDouble).filter(e -> e > 0).sorted().distinct().toArray());
+    }
+
+}
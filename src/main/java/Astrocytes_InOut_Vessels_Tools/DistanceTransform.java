@@ -0,0 +1,191 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import java.util.stream.IntStream;
+
+
+/**
+ * Anisotropic 3D Euclidean distance transform of a label image, with nearest label map
+ * Separable algorithm of Felzenszwalb and Huttenlocher, lines of each axis are processed in parallel
+ * Distances are in calibrated units, each background voxel gets the label of its nearest labelled voxel
+ * @author ORION-CIRB
+ */
+public class DistanceTransform {
+
+    private static final float INF = Float.MAX_VALUE;
+
+    private final int width, height, depth;
+    private final double pixelWidth, pixelDepth;
+    private float[][] dist2;
+    private int[][] labels;
+
+
+    public DistanceTransform(int width, int height, int depth, double pixelWidth, double pixelDepth) {
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.pixelWidth = pixelWidth;
+        this.pixelDepth = pixelDepth;
+    }
+
+
+    /**
+     * Compute distance to nonzero voxels of features stack
+     */
+    public void compute(ImageStack features) {
+        dist2 = new float[depth][width*height];
+        labels = new int[depth][width*height];
+        IntStream.range(0, depth).parallel().forEach(z -> {
+            ImageProcessor ip = features.getProcessor(z+1);
+            float[] d = dist2[z];
+            int[] l = labels[z];
+            for (int i = 0; i < d.length; i++) {
+                int label = (int) ip.getf(i);
+                d[i] = (label == 0) ? INF : 0;
+                l[i] = label;
+            }
+        });
+        transform();
+    }
+
+
+    /**
+     * Compute distance to nonzero voxels of features labels, given per slice
+     */
+    public void compute(int[][] features) {
+        dist2 = new float[depth][width*height];
+        labels = new int[depth][width*height];
+        IntStream.range(0, depth).parallel().forEach(z -> {
+            float[] d = dist2[z];
+            int[] l = labels[z];
+            for (int i = 0; i < d.length; i++) {
+                int label = features[z][i];
+                d[i] = (label == 0) ? INF : 0;
+                l[i] = label;
+            }
+        });
+        transform();
+    }
+
+
+    private void transform() {
+        pass(0, height*depth, width, pixelWidth);
+        pass(1, width*depth, height, pixelWidth);
+        if (depth > 1)
+            pass(2, width*height, depth, pixelDepth);
+    }
+
+
+    /**
+     * 1D transform of all lines along axis (0 = x, 1 = y, 2 = z)
+     */
+    private void pass(int axis, int nbLines, int n, double spacing) {
+        double s2 = spacing*spacing;
+        int nbChunks = Math.min(nbLines, 4*Runtime.getRuntime().availableProcessors());
+        IntStream.range(0, nbChunks).parallel().forEach(chunk -> {
+            float[] f = new float[n], d = new float[n];
+            int[] lab = new int[n], dl = new int[n], v = new int[n];
+            double[] zz = new double[n+1];
+            for (int line = chunk; line < nbLines; line += nbChunks) {
+                int slice = 0, offset = 0, stride = 1;
+                switch (axis) {
+                    case 0 :
+                        slice = line / height;
+                        offset = (line % height) * width;
+                        break;
+                    case 1 :
+                        slice = line / width;
+                        offset = line % width;
+                        stride = width;
+                        break;
+                    default :
+                        offset = line;
+                }
+                for (int k = 0; k < n; k++) {
+                    int z = (axis == 2) ? k : slice;
+                    int i = (axis == 2) ? offset : offset + k*stride;
+                    f[k] = dist2[z][i];
+                    lab[k] = labels[z][i];
+                }
+                if (!transform1D(f, lab, n, s2, d, dl, v, zz))
+                    continue;
+                for (int k = 0; k < n; k++) {
+                    int z = (axis == 2) ? k : slice;
+                    int i = (axis == 2) ? offset : offset + k*stride;
+                    dist2[z][i] = d[k];
+                    labels[z][i] = dl[k];
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Lower envelope of parabolas rooted at finite entries of f
+     * Return false if line has no finite entry
+     */
+    private static boolean transform1D(float[] f, int[] lab, int n, double s2, float[] d, int[] dl, int[] v, double[] zz) {
+        int k = -1;
+        for (int q = 0; q < n; q++) {
+            if (f[q] == INF)
+                continue;
+            double s = 0;
+            while (k >= 0) {
+                int p = v[k];
+                s = ((f[q] + s2*q*q) - (f[p] + s2*p*p)) / (2*s2*(q - p));
+                if (s > zz[k])
+                    break;
+                k--;
+            }
+            k++;
+            v[k] = q;
+            zz[k] = (k == 0) ? Double.NEGATIVE_INFINITY : s;
+            zz[k+1] = Double.POSITIVE_INFINITY;
+        }
+        if (k < 0)
+            return(false);
+
+        k = 0;
+        for (int q = 0; q < n; q++) {
+            while (zz[k+1] < q)
+                k++;
+            int p = v[k];
+            d[q] = (float) (s2*(q - p)*(q - p) + f[p]);
+            dl[q] = lab[p];
+        }
+        return(true);
+    }
+
+
+    /**
+     * Squared distances of slice z, in calibrated units
+     */
+    public float[] getSquaredDistances(int z) {
+        return(dist2[z]);
+    }
+
+
+    /**
+     * Nearest labels of slice z
+     */
+    public int[] getLabels(int z) {
+        return(labels[z]);
+    }
+
+
+    /**
+     * Draw nearest label in target for voxels at distance <= radius, 0 elsewhere
+     */
+    public void drawDilatedLabels(ImageStack target, double radius) {
+        float r2 = (float) (radius*radius);
+        IntStream.range(0, depth).parallel().forEach(z -> {
+            ImageProcessor ip = target.getProcessor(z+1);
+            float[] d = dist2[z];
+            int[] l = labels[z];
+            for (int i = 0; i < d.length; i++)
+                ip.setf(i, (d[i] <= r2) ? l[i] : 0);
+        });
+    }
+
+}
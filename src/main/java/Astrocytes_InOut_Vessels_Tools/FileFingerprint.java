@@ -0,0 +1,68 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+
+/**
+ * Cheap content fingerprint of a file: size, last modification time and a hash of a few blocks sampled along it
+ * Whole files are not read, so that fingerprinting a folder of large stacks stays fast
+ * @author ORION-CIRB
+ */
+public class FileFingerprint {
+
+    private static final int NB_SAMPLES = 8;
+    private static final int SAMPLE_SIZE = 64*1024;
+
+
+    /**
+     * Fingerprint of file, "none" if it does not exist
+     */
+    public static String of(File file) throws IOException {
+        if (file == null || !file.exists())
+            return("none");
+        long size = file.length();
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+        byte[] buf = new byte[SAMPLE_SIZE];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (size <= (long) NB_SAMPLES * SAMPLE_SIZE) {
+                int len;
+                while ((len = raf.read(buf)) > 0)
+                    md.update(buf, 0, len);
+            } else {
+                // First and last blocks always sampled, others evenly spaced
+                for (int s = 0; s < NB_SAMPLES; s++) {
+                    raf.seek((size - SAMPLE_SIZE) * s / (NB_SAMPLES - 1));
+                    raf.readFully(buf);
+                    md.update(buf);
+                }
+            }
+        }
+        return(size + "-" + file.lastModified() + "-" + toHex(md.digest()));
+    }
+
+
+    /**
+     * Fingerprint of file, "none" if it does not exist
+     */
+    public static String of(String path) throws IOException {
+        return(of((path == null) ? null : new File(path)));
+    }
+
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b: bytes)
+            sb.append(String.format("%02x", b));
+        return(sb.toString());
+    }
+
+}
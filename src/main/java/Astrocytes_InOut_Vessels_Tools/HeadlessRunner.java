@@ -0,0 +1,299 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import ij.measure.Calibration;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import loci.formats.meta.IMetadata;
+import loci.plugins.util.ImageProcessorReader;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang.ArrayUtils;
+
+
+/**
+ * Command-line entry point, without any dialog
+ *
+ * Usage: HeadlessRunner --input DIR [--params FILE] [--KEY VALUE ...] [--shard i/N] [--merge] [--sweep]
+ *   --params FILE  properties file with Parameters keys (vesselCh, vesselThMethod, minVesselVol, dilVessel, ...)
+ *   --KEY VALUE    any Parameters key, overrides the value of the parameters file, unknown keys are rejected
+ *   --shard i/N    analyze only images i, i+N, i+2N... of the folder (0 <= i < N) and write a partial results table
+ *   --merge        combine the N partial results tables of the folder into results.xls, N is taken from --shard
+ *                  if given, from the tables found otherwise, and all N tables must be present
+ *   --sweep        vesselThMethod, dilVessel and astroThMethod take comma-separated lists of values,
+ *                  all their combinations are evaluated and written in Results_sweep/sweep.xls
+ * Channels can be given by name or by index, calibration is read from the first image if not given
+ * @author ORION-CIRB
+ */
+public class HeadlessRunner {
+
+    private final Tools tools = new Tools();
+
+
+    public static void main(String[] args) {
+        int status;
+        try {
+            status = new HeadlessRunner().run(args);
+        } catch (Exception ex) {
+            Logger.getLogger(HeadlessRunner.class.getName()).log(Level.SEVERE, null, ex);
+            status = 1;
+        }
+        System.exit(status);
+    }
+
+
+    /**
+     * Parse arguments and run analysis or merge, return exit status
+     */
+    public int run(String[] args) throws Exception {
+        String imageDir = null;
+        String paramsFile = null;
+        Properties overrides = new Properties();
+        int shard = 0, nbShards = 1;
+        boolean merge = false, sweep = false;
+
+        Set<String> keys = new Parameters(new Properties()).toProperties().stringPropertyNames();
+        for (int i = 0; i < args.length; i++) {
+            boolean hasValue = i+1 < args.length;
+            switch (args[i]) {
+                case "--input" :
+                    if (!hasValue)
+                        return(usage("Missing folder after --input"));
+                    imageDir = args[++i];
+                    break;
+                case "--params" :
+                    if (!hasValue)
+                        return(usage("Missing file after --params"));
+                    paramsFile = args[++i];
+                    break;
+                case "--shard" :
+                    String[] sh = hasValue ? args[++i].split("/") : new String[0];
+                    if (sh.length != 2 || !sh[0].matches("\\d{1,9}") || !sh[1].matches("\\d{1,9}"))
+                        return(usage("Shard must be i/N with 0 <= i < N"));
+                    shard = Integer.parseInt(sh[0]);
+                    nbShards = Integer.parseInt(sh[1]);
+                    break;
+                case "--merge" :
+                    merge = true;
+                    break;
+                case "--sweep" :
+                    sweep = true;
+                    break;
+                default :
+                    if (!args[i].startsWith("--") || !keys.contains(args[i].substring(2)))
+                        return(usage("Unknown argument " + args[i] + ", parameters are " + new TreeSet<>(keys)));
+                    if (!hasValue)
+                        return(usage("Missing value after " + args[i]));
+                    overrides.setProperty(args[i].substring(2), args[++i]);
+            }
+        }
+        if (imageDir == null)
+            return(usage("Missing --input"));
+        if (nbShards < 1 || shard < 0 || shard >= nbShards)
+            return(usage("Shard must be i/N with 0 <= i < N"));
+        if (sweep && (merge || nbShards > 1))
+            return(usage("--sweep cannot be combined with --shard or --merge"));
+
+        Properties props = new Properties();
+        if (paramsFile != null) {
+            try (FileReader reader = new FileReader(paramsFile)) {
+                props.load(reader);
+            }
+            for (String key: props.stringPropertyNames())
+                if (!keys.contains(key))
+                    return(usage("Unknown parameter " + key + " in " + paramsFile + ", parameters are " + new TreeSet<>(keys)));
+        }
+        props.putAll(overrides);
+
+        // Swept values, the first one of each list stands in parameters
+        List<String> vesselThMethods = null, astroThMethods = null;
+        List<Integer> dilVessels = new ArrayList<>();
+        if (sweep) {
+            Parameters defaults = new Parameters(new Properties());
+            vesselThMethods = splitList(props.getProperty("vesselThMethod", defaults.vesselThMethod));
+            astroThMethods = splitList(props.getProperty("astroThMethod", defaults.astroThMethod));
+            for (String dil: splitList(props.getProperty("dilVessel", Integer.toString(defaults.dilVessel))))
+                dilVessels.add(Integer.parseInt(dil));
+            props.setProperty("vesselThMethod", vesselThMethods.get(0));
+            props.setProperty("astroThMethod", astroThMethods.get(0));
+            props.setProperty("dilVessel", Integer.toString(dilVessels.get(0)));
+        }
+
+        // Find images with extension
+        String fileExt = tools.findImageType(new File(imageDir));
+        ArrayList<String> imageFiles = tools.findImages(imageDir, fileExt);
+        if (imageFiles == null || imageFiles.isEmpty()) {
+            System.out.println("No images found with " + fileExt + " extension");
+            return(1);
+        }
+
+        // Find channels and calibration in first image
+        ImageProcessorReader reader = tools.createReader(imageFiles.get(0));
+        IMetadata meta = (IMetadata) reader.getMetadataStore();
+        String[] channels = tools.findChannels(imageFiles.get(0), meta, reader);
+        if (!props.containsKey("pixelWidth") || !props.containsKey("pixelDepth")) {
+            Calibration cal = tools.findImageCalib(meta);
+            if (!props.containsKey("pixelWidth"))
+                props.setProperty("pixelWidth", Double.toString(cal.pixelWidth));
+            if (!props.containsKey("pixelDepth"))
+                props.setProperty("pixelDepth", Double.toString(cal.pixelDepth));
+        }
+        reader.close();
+        Parameters params = new Parameters(props);
+
+        String outDirResults = imageDir + File.separator + "Results_" + (sweep ? "sweep" : params.astroThMethod) + File.separator;
+        new File(outDirResults).mkdirs();
+        if (merge)
+            return(mergeShards(imageFiles, outDirResults, nbShards));
+
+        int[] indexChs = new int[3];
+        String[] chs = params.getChannels();
+        for (int n = 0; n < chs.length; n++) {
+            indexChs[n] = findChannelIndex(channels, chs[n]);
+            if (indexChs[n] < 0)
+                return(usage("Channel " + chs[n] + " not found in " + String.join(", ", channels)));
+        }
+
+        if (sweep) {
+            try (BufferedWriter results = new BufferedWriter(new FileWriter(outDirResults + "sweep.xls", false))) {
+                new ParameterSweep(tools, params, indexChs, imageDir, vesselThMethods, dilVessels, astroThMethods).run(imageFiles, results);
+            }
+            tools.print("All done!");
+            return(0);
+        }
+
+        // Keep images of this shard
+        List<String> shardFiles = new ArrayList<>();
+        for (int n = shard; n < imageFiles.size(); n += nbShards)
+            shardFiles.add(imageFiles.get(n));
+
+        String resultsName = (nbShards == 1) ? "results.xls" : shardResultsName(shard, nbShards);
+        try (BufferedWriter results = new BufferedWriter(new FileWriter(outDirResults + resultsName, false))) {
+            results.write(tools.resultsHeader);
+            results.flush();
+            ImagePipeline pipeline = new ImagePipeline(tools, params, indexChs, imageDir, outDirResults);
+            String manifestName = (nbShards == 1) ? "manifest.txt" : "manifest_shard" + shard + "of" + nbShards + ".txt";
+            RunManifest manifest = new RunManifest(new File(outDirResults + manifestName));
+            new BatchRunner(params.parallelImages).run(shardFiles, pipeline, results, manifest);
+        }
+        tools.print("All done!");
+        return(0);
+    }
+
+
+    /**
+     * Index of channel given by name or by index, -1 if not found
+     */
+    private int findChannelIndex(String[] channels, String ch) {
+        int index = ArrayUtils.indexOf(channels, ch);
+        if (index < 0 && ch.matches("\\d+") && Integer.parseInt(ch) < channels.length)
+            index = Integer.parseInt(ch);
+        return(index);
+    }
+
+
+    private List<String> splitList(String values) {
+        List<String> list = new ArrayList<>();
+        for (String v: values.split(","))
+            if (!v.trim().isEmpty())
+                list.add(v.trim());
+        return(list);
+    }
+
+
+    private String shardResultsName(int shard, int nbShards) {
+        return("results_shard" + shard + "of" + nbShards + ".xls");
+    }
+
+
+    /**
+     * Merge partial results tables of all nbShards shards into results.xls, in images order
+     * If nbShards is 1, it is found from the tables of the folder, which must then all be of the same run
+     */
+    private int mergeShards(List<String> imageFiles, String outDirResults, int nbShards) throws IOException {
+        Pattern shardName = Pattern.compile("results_shard(\\d+)of(\\d+)\\.xls");
+        TreeSet<Integer> counts = new TreeSet<>();
+        String[] names = new File(outDirResults).list();
+        for (String name: (names == null) ? new String[0] : names) {
+            Matcher m = shardName.matcher(name);
+            if (m.matches())
+                counts.add(Integer.parseInt(m.group(2)));
+        }
+        if (counts.isEmpty()) {
+            System.out.println("No partial results table found in " + outDirResults);
+            return(1);
+        }
+        if (nbShards == 1) {
+            if (counts.size() > 1)
+                return(usage("Partial results tables of " + counts + " shards found, give the number of shards to merge with --shard 0/N"));
+            nbShards = counts.first();
+        }
+
+        // All shards of the run must be there, tables of runs with another number of shards are left out
+        List<File> shardFiles = new ArrayList<>();
+        List<Integer> missing = new ArrayList<>();
+        for (int shard = 0; shard < nbShards; shard++) {
+            File shardFile = new File(outDirResults + shardResultsName(shard, nbShards));
+            if (shardFile.exists())
+                shardFiles.add(shardFile);
+            else
+                missing.add(shard);
+        }
+        if (!missing.isEmpty()) {
+            System.out.println("Partial results tables of shards " + missing + " of " + nbShards + " not found in " + outDirResults);
+            return(1);
+        }
+
+        Map<String, String> rows = new HashMap<>();
+        for (File shardFile: shardFiles) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(shardFile))) {
+                String line = reader.readLine(); // header
+                int nbLine = 1;
+                while ((line = reader.readLine()) != null) {
+                    nbLine++;
+                    if (line.isEmpty())
+                        continue;
+                    int tab = line.indexOf('\t');
+                    if (tab <= 0)
+                        System.out.println("Skipping line " + nbLine + " of " + shardFile.getName() + ", not a results row");
+                    else
+                        rows.put(line.substring(0, tab), line);
+                }
+            }
+        }
+
+        try (BufferedWriter results = new BufferedWriter(new FileWriter(outDirResults + "results.xls", false))) {
+            results.write(tools.resultsHeader);
+            for (String f: imageFiles) {
+                String row = rows.get(FilenameUtils.getBaseName(f));
+                if (row == null)
+                    System.out.println("No results for image " + FilenameUtils.getBaseName(f));
+                else
+                    results.write(row + "\n");
+            }
+        }
+        System.out.println("Merged " + shardFiles.size() + " partial results tables into " + outDirResults + "results.xls");
+        return(0);
+    }
+
+
+    private int usage(String error) {
+        System.out.println(error);
+        System.out.println("Usage: HeadlessRunner --input DIR [--params FILE] [--KEY VALUE ...] [--shard i/N] [--merge] [--sweep]");
+        return(2);
+    }
+
+}
@@ -0,0 +1,482 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import ij.ImagePlus;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.plugins.util.ImageProcessorReader;
+import org.apache.commons.io.FilenameUtils;
+
+
+/**
+ * Full analysis of one image with the parameters of a run
+ * Holds no per-image state, so that several images can be analyzed at once
+ * @author ORION-CIRB
+ */
+public class ImagePipeline {
+
+    // Version of vessels detection, dilation and cache entry format, to increment when any of them changes
+    private static final int VESSELS_STAGE_VERSION = 2;
+
+    private final Tools tools;
+    private final Parameters params;
+    private final int[] chIndexes;
+    private final String imageDir;
+    private final String outDirResults;
+    private final StageCache cache;
+    private final Instrumentation instr;
+    private final OverlayWriter overlays;
+
+
+    public ImagePipeline(Tools tools, Parameters params, int[] chIndexes, String imageDir, String outDirResults) {
+        this.tools = tools;
+        // Backend actually used, so that manifest and cache tell results of GPU and CPU hosts apart
+        this.params = params.with("thresholdBackend", tools.getThresholdBackendName(params));
+        this.chIndexes = chIndexes;
+        this.imageDir = imageDir;
+        this.outDirResults = outDirResults;
+        this.cache = (params.cacheSizeMB > 0) ? new StageCache(new File(imageDir, "Cache"), params.cacheSizeMB*1024L*1024L) : null;
+        this.instr = params.writeReports ? new Instrumentation(new JsonReportSink(new File(outDirResults, "Reports"))) : Instrumentation.DISABLED;
+        tools.setInstrumentation(instr);
+        this.overlays = new OverlayWriter(params);
+    }
+
+
+    /**
+     * Channels and inputs of an image, read by load
+     * Its reader is opened once by open, metadata the footprint and slab size come from are not parsed again
+     */
+    public static class LoadedImage {
+        final String f, rootName;
+        ImageProcessorReader reader;
+        long footprint;
+        int slabSlices;
+        ImagePlus[] imgs;
+        ImagePlus[] vesselsStage;
+        String vesselsKey;
+        RoiMask roiMask;
+
+        LoadedImage(String f) {
+            this.f = f;
+            this.rootName = FilenameUtils.getBaseName(f);
+        }
+
+        /**
+         * Heap needed to analyze image, in bytes
+         */
+        public long getFootprint() {
+            return(footprint);
+        }
+
+        /**
+         * Close reader if image is not read further
+         */
+        void closeReader() {
+            if (reader == null)
+                return;
+            try {
+                reader.close();
+            } catch (IOException ex) {
+                Logger.getLogger(ImagePipeline.class.getName()).log(Level.WARNING, "Cannot close reader of " + f, ex);
+            }
+            reader = null;
+        }
+    }
+
+
+    /**
+     * Outputs of the analysis of an image, saved by write
+     */
+    public static class Analysis {
+        final String rootName;
+        String row;
+        OverlayWriter.SliceClasses drawing;
+        int width, height, depth;
+        String profile;
+        String vesselsKey;
+        ImagePlus[] vesselsStage;
+        // Outputs written, as "drawing", "objects" or "profile", complete if none failed
+        final List<String> outputs = new ArrayList<>();
+        boolean complete = true;
+
+        Analysis(String rootName) {
+            this.rootName = rootName;
+        }
+
+        public String getRow() {
+            return(row);
+        }
+
+        /**
+         * Kinds of outputs of the image, to be recorded with its row
+         */
+        public List<String> getOutputs() {
+            return(outputs);
+        }
+
+        /**
+         * Whether all outputs of the image were written, its row must not be recorded in a manifest otherwise
+         */
+        public boolean isComplete() {
+            return(complete);
+        }
+    }
+
+
+    /**
+     * Stages of images analyzed, reported in results folder Reports/ if enabled in parameters
+     */
+    public Instrumentation getInstrumentation() {
+        return(instr);
+    }
+
+
+    /**
+     * Analyze opened image, save its outputs and return its analysis
+     */
+    public Analysis processImage(LoadedImage img) throws DependencyException, ServiceException, FormatException, IOException {
+        Analysis analysis = analyze(load(img));
+        write(analysis);
+        return(analysis);
+    }
+
+
+    /**
+     * Open reader of image and estimate its footprint and slab size from its metadata
+     */
+    public LoadedImage open(String f) throws DependencyException, ServiceException, FormatException, IOException {
+        LoadedImage img = new LoadedImage(f);
+        img.reader = tools.createReader(f);
+        try {
+            img.footprint = estimateFootprint(img.reader);
+            img.slabSlices = getSlabSlices(img);
+        } catch (RuntimeException ex) {
+            img.closeReader();
+            throw ex;
+        }
+        return(img);
+    }
+
+
+    /**
+     * Read channels and ROIs of opened image, then close its reader
+     * Vessels stage (vessels labels and dilated vessels labels) is taken from cache if its inputs did not change,
+     * vessels and microglia channels are then not even read
+     * Images too large for the heap are analyzed in Z slabs by a ChunkedPipeline, which reads them with the same reader
+     */
+    public LoadedImage load(LoadedImage img) throws DependencyException, ServiceException, FormatException, IOException {
+        if (img.slabSlices > 0)
+            return(img);
+
+        tools.print("--- READING IMAGE " + img.rootName + " ------");
+        try (Instrumentation.Scope scope = instr.image(img.rootName)) {
+            String f = img.f;
+            String roiFile = getRoiFile(f);
+            try (Instrumentation.Stage stage = instr.stage("read cache")) {
+                img.vesselsKey = (cache == null) ? null : getVesselsKey(f, roiFile);
+                img.vesselsStage = (cache == null) ? null : cache.load(img.vesselsKey, params.getCalibration());
+            }
+
+            // Open vessels, microglia and astrocytes channels, or only astrocytes channel if vessels stage is cached
+            int[] channels = (img.vesselsStage == null) ? chIndexes : new int[] {chIndexes[2]};
+            try (Instrumentation.Stage stage = instr.stage("decode")) {
+                img.imgs = tools.openChannels(img.reader, img.rootName, channels, params);
+                for (ImagePlus channel: img.imgs)
+                    stage.voxels(Tools.getNbVoxels(channel));
+            }
+            ImagePlus imgAstro = img.imgs[img.imgs.length-1];
+
+            // Check if rois file exist, rasterize rois once to clear regions containing "artefacts"
+            try (Instrumentation.Stage stage = instr.stage("ROIs")) {
+                img.roiMask = new RoiMask(tools.loadRois(imageDir, img.rootName), imgAstro.getWidth(), imgAstro.getHeight());
+            }
+        } finally {
+            img.closeReader();
+        }
+        return(img);
+    }
+
+
+    /**
+     * Analyze loaded image, return its results row, drawing and cache entry to write
+     * Per-object results are written as objects are measured
+     */
+    public Analysis analyze(LoadedImage img) throws DependencyException, ServiceException, FormatException, IOException {
+        try (Instrumentation.Scope scope = instr.image(img.rootName)) {
+            return(analyzeImage(img));
+        }
+    }
+
+
+    private Analysis analyzeImage(LoadedImage img) throws DependencyException, ServiceException, FormatException, IOException {
+        Analysis analysis = new Analysis(img.rootName);
+        if (img.slabSlices > 0) {
+            try (Instrumentation.Stage stage = instr.stage("slabs")) {
+                ImageProcessorReader reader = img.reader;
+                img.reader = null;
+                analysis.row = new ChunkedPipeline(tools, params, chIndexes, imageDir, outDirResults, img.slabSlices).processImage(img.f, reader);
+            }
+            if (overlays.isEnabled())
+                analysis.outputs.add("drawing");
+            return(analysis);
+        }
+
+        tools.print("--- ANALYZING IMAGE " + img.rootName + " ------");
+        ImagePlus imgAstro = img.imgs[img.imgs.length-1];
+        long nbVoxels = Tools.getNbVoxels(imgAstro);
+
+        // Analyze vessels channel
+        ImagePlus imgVesselLabels;
+        if (img.vesselsStage == null) {
+            tools.print("- Analyzing microglia and vessels channel -");
+            try (Instrumentation.Stage stage = instr.stage("vessels").voxels(nbVoxels)) {
+                imgVesselLabels = tools.findVessels(img.imgs[0], img.imgs[1], img.roiMask, params);
+            }
+            tools.flushCloseImg(img.imgs[0]);
+            tools.flushCloseImg(img.imgs[1]);
+        } else {
+            tools.print("- Vessels taken from cache -");
+            imgVesselLabels = img.vesselsStage[0];
+        }
+        RunLengthPopulation vesselsPop;
+        try (Instrumentation.Stage stage = instr.stage("vessels population").voxels(nbVoxels)) {
+            vesselsPop = RunLengthPopulation.fromImage(imgVesselLabels);
+            stage.objects(vesselsPop.getNbObjects());
+        }
+
+        // Analyze astrocytes channel
+        tools.print("- Analyzing astrocytes channel -");
+        RunLengthPopulation astrocytesPop;
+        try (Instrumentation.Stage stage = instr.stage("astrocytes").voxels(nbVoxels)) {
+            astrocytesPop = tools.findAstrocytes(imgAstro, img.roiMask, params);
+            stage.objects(astrocytesPop.getNbObjects());
+        }
+
+        // Dilate vessels
+        ImagePlus imgDilVessels;
+        if (img.vesselsStage == null) {
+            try (Instrumentation.Stage stage = instr.stage("dilation").voxels(nbVoxels)) {
+                imgDilVessels = tools.dilateVessels(imgVesselLabels, params).getImagePlus();
+            }
+            if (cache != null) {
+                analysis.vesselsKey = img.vesselsKey;
+                analysis.vesselsStage = new ImagePlus[] {imgVesselLabels, imgDilVessels};
+            }
+        } else {
+            imgDilVessels = img.vesselsStage[1];
+        }
+
+        // Find astrocytes into and out of vessels
+        RunLengthPopulation astroInPop, astroOutPop;
+        try (Instrumentation.Stage stage = instr.stage("astrocytes in/out").voxels(nbVoxels)) {
+            List<RunLengthPopulation> astroInOutPops = tools.findAstroInOutVessels(astrocytesPop, imgDilVessels);
+            astroInPop = astroInOutPops.get(0);
+            astroOutPop = astroInOutPops.get(1);
+            stage.objects(astroInPop.getNbObjects() + astroOutPop.getNbObjects());
+        }
+
+        // Classes of voxels to draw, result image is rendered and written by write
+        if (overlays.isEnabled()) {
+            analysis.drawing = OverlayWriter.of(vesselsPop, astroInPop, astroOutPop, imgAstro.getWidth(), imgAstro.getHeight());
+            analysis.width = imgAstro.getWidth();
+            analysis.height = imgAstro.getHeight();
+            analysis.depth = imgAstro.getNSlices();
+            analysis.outputs.add("drawing");
+        }
+
+        // Compute results
+        try (Instrumentation.Stage stage = instr.stage("measure").voxels(nbVoxels)) {
+            analysis.row = tools.getResults(imgVesselLabels, imgDilVessels, astrocytesPop, img.roiMask, img.rootName, params);
+        }
+
+        // Distance transform of vessels, shared by objects and distance profile
+        DistanceTransform vesselsEdt = null;
+        if (params.exportObjects || params.hasProfile()) {
+            try (Instrumentation.Stage stage = instr.stage("vessels distance").voxels(nbVoxels)) {
+                vesselsEdt = DistanceProfile.vesselsDistance(imgVesselLabels, params);
+            }
+        }
+        if (params.exportObjects) {
+            tools.print("- Measuring objects -");
+            try (Instrumentation.Stage stage = instr.stage("objects").voxels(nbVoxels)) {
+                stage.objects(new ObjectExport(params).write(astroInPop, astroOutPop, vesselsEdt, outDirResults, img.rootName));
+                analysis.outputs.add("objects");
+            } catch (IOException ex) {
+                analysis.complete = false;
+                Logger.getLogger(ImagePipeline.class.getName()).log(Level.SEVERE, "Objects of "+img.rootName+" not written", ex);
+            }
+        }
+        if (params.hasProfile()) {
+            tools.print("- Computing distance profile -");
+            try (Instrumentation.Stage stage = instr.stage("profile").voxels(nbVoxels)) {
+                DistanceProfile profile = new DistanceProfile(params.getProfileEdges());
+                analysis.profile = profile.getTable(img.rootName, profile.measure(vesselsEdt, astrocytesPop, imgAstro, img.roiMask), params);
+            }
+        }
+
+        if (analysis.vesselsStage == null) {
+            tools.flushCloseImg(imgDilVessels);
+            tools.flushCloseImg(imgVesselLabels);
+        }
+        tools.flushCloseImg(imgAstro);
+        return(analysis);
+    }
+
+
+    /**
+     * Save distance profile and cache entry of analyzed image, and queue its result image
+     */
+    public void write(Analysis analysis) {
+        try (Instrumentation.Scope scope = instr.image(analysis.rootName)) {
+            if (analysis.profile != null) {
+                try (Instrumentation.Stage stage = instr.stage("write profile")) {
+                    DistanceProfile.write(analysis.profile, outDirResults, analysis.rootName);
+                    analysis.outputs.add("profile");
+                } catch (IOException ex) {
+                    analysis.complete = false;
+                    Logger.getLogger(ImagePipeline.class.getName()).log(Level.SEVERE, "Profile of "+analysis.rootName+" not written", ex);
+                }
+            }
+            if (analysis.vesselsStage != null) {
+                try (Instrumentation.Stage stage = instr.stage("write cache")) {
+                    cache.save(analysis.vesselsKey, analysis.vesselsStage);
+                }
+                for (ImagePlus img: analysis.vesselsStage)
+                    tools.flushCloseImg(img);
+            }
+        }
+        if (analysis.drawing == null) {
+            instr.imageDone(analysis.rootName);
+            return;
+        }
+
+        // Result image is rendered and written on the overlay thread, image is done once it is written
+        overlays.submit(() -> {
+            try (Instrumentation.Scope scope = instr.image(analysis.rootName);
+                    Instrumentation.Stage stage = instr.stage("write drawing").voxels((long) analysis.width * analysis.height * analysis.depth)) {
+                overlays.write(analysis.drawing, analysis.width, analysis.height, analysis.depth, new File(outDirResults + analysis.rootName + ".tif"));
+            } catch (IOException ex) {
+                Logger.getLogger(ImagePipeline.class.getName()).log(Level.SEVERE, "Drawing of "+analysis.rootName+" not written", ex);
+            } finally {
+                instr.imageDone(analysis.rootName);
+            }
+        });
+    }
+
+
+    /**
+     * Wait for result images still being written, then report run to instrumentation
+     */
+    public void finish() {
+        overlays.await();
+        instr.runDone();
+    }
+
+
+    /**
+     * Cache key of vessels stage: version, image and ROIs contents, parameters and backend vessels detection and dilation depend on
+     */
+    private String getVesselsKey(String f, String roiFile) throws IOException {
+        return(StageCache.key("vessels", Integer.toString(VESSELS_STAGE_VERSION), FileFingerprint.of(f), FileFingerprint.of(roiFile),
+                Integer.toString(chIndexes[0]), Integer.toString(chIndexes[1]),
+                params.microThMethod, params.vesselThMethod, Double.toString(params.minVesselVol),
+                Integer.toString(params.dilVessel), params.dilationMode,
+                Double.toString(params.pixelWidth), Double.toString(params.pixelDepth), tools.getThresholdBackendName(params)));
+    }
+
+
+    /**
+     * Estimate heap needed to analyze image, in bytes
+     * Based on image size read from metadata and number of full size working copies of the analysis
+     */
+    private long estimateFootprint(ImageProcessorReader reader) {
+        long voxels = (long) reader.getSizeX() * reader.getSizeY() * reader.getSizeZ();
+        int bytesPerVoxel = FormatTools.getBytesPerPixel(reader.getPixelType());
+        // 3 channels + LoG (float) + median + binary and label copies
+        return(voxels * (chIndexes.length * bytesPerVoxel + 4 + 4 * bytesPerVoxel + 8));
+    }
+
+
+    /**
+     * Number of slices of the slabs image is analyzed in, 0 to analyze it at once
+     * Set in parameters, or chosen so that a slab fits in a quarter of the heap if the whole image does not fit in it
+     * Slabs are thresholded on CPU and dilated in "distance" mode, so that they are refused with other parameters:
+     * rows of the same results table are always computed the same way
+     */
+    private int getSlabSlices(LoadedImage img) {
+        int depth = img.reader.getSizeZ();
+        long footprint = img.footprint;
+        long maxHeap = Runtime.getRuntime().maxMemory();
+        int slabSlices;
+        if (params.slabSlices > 0)
+            slabSlices = (params.slabSlices < depth) ? params.slabSlices : 0;
+        else if (footprint < 0.8 * maxHeap)
+            slabSlices = 0;
+        else
+            slabSlices = (int) Math.max(1, maxHeap / 4 / (footprint / depth));
+        if (slabSlices > 0 && (!params.thresholdBackend.equals("cpu") || !params.dilationMode.equals("distance")))
+            throw new IllegalStateException("Image " + img.rootName + " needs " + (footprint >> 20) + " MB (heap "
+                    + (maxHeap >> 20) + " MB) and can only be analyzed in Z slabs, thresholded on CPU and dilated in distance mode:"
+                    + " run with thresholdBackend=cpu and dilationMode=distance (now " + params.thresholdBackend + " and "
+                    + params.dilationMode + "), or with a larger heap (-Xmx)");
+        return(slabSlices);
+    }
+
+
+    /**
+     * ROIs file of image, null if none
+     */
+    public String getRoiFile(String f) {
+        return(tools.findRoiFile(imageDir, FilenameUtils.getBaseName(f)));
+    }
+
+
+    /**
+     * Row recorded in manifest for image of entry, null if its inputs changed or if an output recorded with it is missing
+     * Outputs expected with parameters but not recorded (e.g. objects of an image analyzed in slabs) are not looked for
+     */
+    public String getPreviousRow(RunManifest manifest, RunManifest.Entry entry) {
+        String row = manifest.getRow(entry);
+        if (row == null)
+            return(null);
+        for (String output: manifest.getOutputs(entry)) {
+            File[] files = getOutputFiles(entry.name, output);
+            if (files == null)
+                return(null);
+            for (File file: files)
+                if (!file.exists())
+                    return(null);
+        }
+        return(row);
+    }
+
+
+    /**
+     * Files of output kind of image rootName, null if kind is unknown
+     */
+    private File[] getOutputFiles(String rootName, String output) {
+        switch (output) {
+            case "drawing" :
+                return(new File[] {new File(outDirResults + rootName + ".tif")});
+            case "objects" :
+                return(ObjectExport.getFiles(outDirResults, rootName));
+            case "profile" :
+                return(new File[] {DistanceProfile.getFile(outDirResults, rootName)});
+            default :
+                return(null);
+        }
+    }
+
+
+    public Parameters getParameters() {
+        return(params);
+    }
+
+}
@@ -0,0 +1,319 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Wall time, CPU time, allocated bytes, peak heap, voxels and objects of the stages of the analysis of each image
+ * Stages are opened by the thread working on an image, inside an image scope naming it, and may be nested
+ * A nested stage records the stage it was opened in as its parent, its measures are also counted in its parent's
+ * CPU time and allocated bytes are those of the whole process, and include images analyzed at the same time
+ * Allocated bytes are exact where the JVM gives the total allocated by all threads (Java 21+), otherwise they are
+ * summed over live threads, missing the bytes of threads ended during the stage, and are approximate
+ * When disabled, stages are a shared object doing nothing
+ * @author ORION-CIRB
+ */
+public class Instrumentation {
+
+    public static final Instrumentation DISABLED = new Instrumentation();
+
+    private static final Stage NO_STAGE = new Stage(null, null, null, null);
+    private static final Scope NO_SCOPE = () -> {};
+
+    private final boolean enabled;
+    private final List<MetricsSink> sinks;
+    private final ThreadLocal<ImageRecord> currentImage = new ThreadLocal<>();
+    private final ThreadLocal<Stage> currentStage = new ThreadLocal<>();
+    private final Map<String, ImageRecord> images = new ConcurrentHashMap<>();
+    private final Set<Stage> openStages = ConcurrentHashMap.newKeySet();
+    private final Map<String, StageRecord> runTotals = new LinkedHashMap<>();
+    private final long runStart = System.nanoTime();
+    private int nbImages = 0;
+    private final List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    private Method totalAllocatedBytes = null;
+
+
+    private Instrumentation() {
+        this.enabled = false;
+        this.sinks = Collections.emptyList();
+    }
+
+
+    public Instrumentation(MetricsSink... sinks) {
+        this.enabled = true;
+        this.sinks = Arrays.asList(sinks);
+        for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                heapPools.add(pool);
+        try {
+            totalAllocatedBytes = com.sun.management.ThreadMXBean.class.getMethod("getTotalThreadAllocatedBytes");
+            if ((Long) totalAllocatedBytes.invoke(threads) < 0)
+                totalAllocatedBytes = null;
+        } catch (ReflectiveOperationException | ClassCastException ex) {
+            // Before Java 21, allocations are summed over live threads
+            totalAllocatedBytes = null;
+        }
+    }
+
+
+    public boolean isEnabled() {
+        return(enabled);
+    }
+
+
+    /**
+     * Scope of image imageName on the calling thread, stages opened in it are recorded for this image
+     */
+    public interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+
+    public Scope image(String imageName) {
+        if (!enabled)
+            return(NO_SCOPE);
+        ImageRecord previous = currentImage.get();
+        currentImage.set(images.computeIfAbsent(imageName, name -> new ImageRecord()));
+        return(() -> currentImage.set(previous));
+    }
+
+
+    /**
+     * Open stage name of the current image of the calling thread
+     */
+    public Stage stage(String name) {
+        if (!enabled)
+            return(NO_STAGE);
+        ImageRecord image = currentImage.get();
+        if (image == null)
+            image = images.computeIfAbsent("", key -> new ImageRecord());
+        Stage parent = currentStage.get();
+        String parentName = (parent != null && parent.image == image) ? parent.name : null;
+        image.open(name, parentName);
+        Stage stage = new Stage(this, image, name, parent);
+        currentStage.set(stage);
+        samplePeakHeap();
+        openStages.add(stage);
+        stage.start();
+        return(stage);
+    }
+
+
+    /**
+     * Send stages of image to sinks and add them to run totals
+     */
+    public void imageDone(String imageName) {
+        if (!enabled)
+            return;
+        ImageRecord image = images.remove(imageName);
+        if (image == null)
+            return;
+        List<StageRecord> stages = image.getStages();
+        synchronized (runTotals) {
+            for (StageRecord s: stages)
+                runTotals.computeIfAbsent(s.name, name -> new StageRecord(name, s.parent)).add(s);
+            nbImages++;
+        }
+        for (MetricsSink sink: sinks)
+            sink.imageDone(imageName, stages);
+    }
+
+
+    /**
+     * End of run: images not done yet (failed) are sent as they are, then run totals
+     */
+    public void runDone() {
+        if (!enabled)
+            return;
+        for (String imageName: new ArrayList<>(images.keySet()))
+            imageDone(imageName);
+        List<StageRecord> totals;
+        synchronized (runTotals) {
+            totals = new ArrayList<>(runTotals.values());
+        }
+        for (MetricsSink sink: sinks)
+            sink.runDone(totals, nbImages, System.nanoTime() - runStart);
+    }
+
+
+    /**
+     * Sum of peak usages of heap pools since last call, folded into peaks of all open stages, then peaks are reset
+     */
+    private synchronized void samplePeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool: heapPools) {
+            peak += pool.getPeakUsage().getUsed();
+            pool.resetPeakUsage();
+        }
+        for (Stage s: openStages)
+            s.peakHeap = Math.max(s.peakHeap, peak);
+    }
+
+
+    private long getCpuTime() {
+        if (os instanceof com.sun.management.OperatingSystemMXBean)
+            return(((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime());
+        return(0);
+    }
+
+
+    private long getAllocatedBytes() {
+        if (!(threads instanceof com.sun.management.ThreadMXBean))
+            return(0);
+        if (totalAllocatedBytes != null) {
+            try {
+                return((Long) totalAllocatedBytes.invoke(threads));
+            } catch (ReflectiveOperationException ex) {
+                totalAllocatedBytes = null;
+            }
+        }
+        long total = 0;
+        for (long n: ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threads.getAllThreadIds()))
+            if (n > 0)
+                total += n;
+        return(total);
+    }
+
+
+    /**
+     * Stage being recorded, closing it adds its measures to its image
+     */
+    public static class Stage implements AutoCloseable {
+
+        private final Instrumentation instr;
+        private final ImageRecord image;
+        private final String name;
+        private final Stage parent;
+        private long wallStart, cpuStart, allocStart;
+        private long voxels, objects;
+        private volatile long peakHeap;
+
+
+        private Stage(Instrumentation instr, ImageRecord image, String name, Stage parent) {
+            this.instr = instr;
+            this.image = image;
+            this.name = name;
+            this.parent = parent;
+        }
+
+
+        private void start() {
+            allocStart = instr.getAllocatedBytes();
+            cpuStart = instr.getCpuTime();
+            wallStart = System.nanoTime();
+        }
+
+
+        /**
+         * Add n to voxels processed by the stage
+         */
+        public Stage voxels(long n) {
+            if (instr != null)
+                voxels += n;
+            return(this);
+        }
+
+
+        /**
+         * Add n to objects found by the stage
+         */
+        public Stage objects(long n) {
+            if (instr != null)
+                objects += n;
+            return(this);
+        }
+
+
+        @Override
+        public void close() {
+            if (instr == null)
+                return;
+            long wall = System.nanoTime() - wallStart;
+            long cpu = instr.getCpuTime() - cpuStart;
+            // Summed over live threads, the total drops when threads end
+            long alloc = Math.max(0, instr.getAllocatedBytes() - allocStart);
+            instr.samplePeakHeap();
+            instr.openStages.remove(this);
+            instr.currentStage.set(parent);
+            image.add(name, wall, cpu, alloc, peakHeap, voxels, objects);
+        }
+    }
+
+
+    /**
+     * Measures of a stage, summed over its calls
+     * Parent is the stage it is nested in, null for a top level stage
+     */
+    public static class StageRecord {
+
+        public final String name;
+        public final String parent;
+        public int calls;
+        public long wallNanos, cpuNanos, allocatedBytes, peakHeapBytes, voxels, objects;
+
+
+        StageRecord(String name, String parent) {
+            this.name = name;
+            this.parent = parent;
+        }
+
+
+        void add(StageRecord other) {
+            calls += other.calls;
+            wallNanos += other.wallNanos;
+            cpuNanos += other.cpuNanos;
+            allocatedBytes += other.allocatedBytes;
+            peakHeapBytes = Math.max(peakHeapBytes, other.peakHeapBytes);
+            voxels += other.voxels;
+            objects += other.objects;
+        }
+    }
+
+
+    /**
+     * Stages of an image, in the order they were first started
+     */
+    private static class ImageRecord {
+
+        private final Map<String, StageRecord> stages = new LinkedHashMap<>();
+
+
+        synchronized void open(String name, String parent) {
+            stages.computeIfAbsent(name, key -> new StageRecord(key, parent));
+        }
+
+
+        synchronized void add(String name, long wall, long cpu, long alloc, long peakHeap, long voxels, long objects) {
+            StageRecord s = stages.get(name);
+            s.calls++;
+            s.wallNanos += wall;
+            s.cpuNanos += cpu;
+            s.allocatedBytes += alloc;
+            s.peakHeapBytes = Math.max(s.peakHeapBytes, peakHeap);
+            s.voxels += voxels;
+            s.objects += objects;
+        }
+
+
+        synchronized List<StageRecord> getStages() {
+            return(new ArrayList<>(stages.values()));
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Metrics sink writing JSON reports in a folder: imageName_report.json for each image and run_DATE_report.json for the run
+ * Each stage gives its parent stage (null at top level), calls, wall and CPU time (ms), allocated and peak heap bytes,
+ * voxels, objects and voxels per second of wall time
+ * Measures of nested stages are also counted in their parent's, so stages must not be summed across levels
+ * @author ORION-CIRB
+ */
+public class JsonReportSink implements MetricsSink {
+
+    private final File dir;
+
+
+    public JsonReportSink(File dir) {
+        this.dir = dir;
+    }
+
+
+    @Override
+    public void imageDone(String imageName, List<Instrumentation.StageRecord> stages) {
+        StringBuilder json = new StringBuilder("{\n  \"image\": ").append(quote(imageName)).append(",\n");
+        appendStages(json, stages);
+        write(new File(dir, (imageName.isEmpty() ? "unnamed" : imageName) + "_report.json"), json.append("}\n").toString());
+    }
+
+
+    @Override
+    public void runDone(List<Instrumentation.StageRecord> stages, int nbImages, long wallNanos) {
+        String date = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"date\": ").append(quote(date)).append(",\n");
+        json.append("  \"images\": ").append(nbImages).append(",\n");
+        json.append("  \"wallMs\": ").append(ms(wallNanos)).append(",\n");
+        appendStages(json, stages);
+        write(new File(dir, "run_" + date + "_report.json"), json.append("}\n").toString());
+    }
+
+
+    private void appendStages(StringBuilder json, List<Instrumentation.StageRecord> stages) {
+        json.append("  \"stages\": [");
+        for (int s = 0; s < stages.size(); s++) {
+            Instrumentation.StageRecord r = stages.get(s);
+            json.append(s == 0 ? "\n" : ",\n").append("    {")
+                .append("\"name\": ").append(quote(r.name))
+                .append(", \"parent\": ").append(r.parent == null ? "null" : quote(r.parent))
+                .append(", \"calls\": ").append(r.calls)
+                .append(", \"wallMs\": ").append(ms(r.wallNanos))
+                .append(", \"cpuMs\": ").append(ms(r.cpuNanos))
+                .append(", \"allocatedBytes\": ").append(r.allocatedBytes)
+                .append(", \"peakHeapBytes\": ").append(r.peakHeapBytes)
+                .append(", \"voxels\": ").append(r.voxels)
+                .append(", \"objects\": ").append(r.objects)
+                .append(", \"voxelsPerSecond\": ").append(r.wallNanos == 0 ? 0 : Math.round(r.voxels * 1e9 / r.wallNanos))
+                .append("}");
+        }
+        json.append(stages.isEmpty() ? "]\n" : "\n  ]\n");
+    }
+
+
+    private static String ms(long nanos) {
+        return(String.format(Locale.ROOT, "%.3f", nanos / 1e6));
+    }
+
+
+    private static String quote(String s) {
+        StringBuilder q = new StringBuilder("\"");
+        for (char c: s.toCharArray()) {
+            if (c == '"' || c == '\\')
+                q.append('\\').append(c);
+            else if (c < 0x20)
+                q.append(String.format("\\u%04x", (int) c));
+            else
+                q.append(c);
+        }
+        return(q.append('"').toString());
+    }
+
+
+    private void write(File file, String json) {
+        dir.mkdirs();
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+            writer.write(json);
+        } catch (IOException ex) {
+            Logger.getLogger(JsonReportSink.class.getName()).log(Level.SEVERE, "Cannot write report " + file, ex);
+        }
+    }
+
+}
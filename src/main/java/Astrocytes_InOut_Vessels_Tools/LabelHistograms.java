@@ -0,0 +1,98 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import java.util.Arrays;
+
+
+/**
+ * Voxel counts of an image, per label of vessels, dilated vessels and astrocytes, accumulated slice by slice
+ * Astrocytes voxels are counted in or out of vessels according to dilated vessels labels of the same voxel
+ * Histograms of slabs accumulated in parallel are merged with add
+ * @author ORION-CIRB
+ */
+public class LabelHistograms {
+
+    // Voxels of image, and voxels inside ROIs
+    public long imageVoxels, roiVoxels;
+    // Voxels per label, index 0 unused
+    public long[] vessels = new long[1], dilVessels = new long[1], astroIn = new long[1], astroOut = new long[1];
+
+
+    /**
+     * Count voxels of one slice, from its labels (0 for background) and number of voxels inside ROIs
+     */
+    public void accumulate(int[] vesselLabels, int[] dilVesselLabels, int[] astroLabels, long sliceRoiVoxels) {
+        imageVoxels += vesselLabels.length;
+        roiVoxels += sliceRoiVoxels;
+        for (int i = 0; i < vesselLabels.length; i++) {
+            int lv = vesselLabels[i], ld = dilVesselLabels[i], la = astroLabels[i];
+            if (lv != 0)
+                vessels = increment(vessels, lv, 1);
+            if (ld != 0)
+                dilVessels = increment(dilVessels, ld, 1);
+            if (la != 0) {
+                if (ld != 0)
+                    astroIn = increment(astroIn, la, 1);
+                else
+                    astroOut = increment(astroOut, la, 1);
+            }
+        }
+    }
+
+
+    /**
+     * Add counts of other histograms to these ones
+     */
+    public LabelHistograms add(LabelHistograms other) {
+        imageVoxels += other.imageVoxels;
+        roiVoxels += other.roiVoxels;
+        vessels = add(vessels, other.vessels);
+        dilVessels = add(dilVessels, other.dilVessels);
+        astroIn = add(astroIn, other.astroIn);
+        astroOut = add(astroOut, other.astroOut);
+        return(this);
+    }
+
+
+    /**
+     * Add n to bin l of h, grown if needed
+     */
+    private static long[] increment(long[] h, int l, long n) {
+        if (l >= h.length)
+            h = Arrays.copyOf(h, Math.max(2*h.length, l+1));
+        h[l] += n;
+        return(h);
+    }
+
+
+    private static long[] add(long[] h, long[] other) {
+        if (other.length > h.length)
+            h = Arrays.copyOf(h, other.length);
+        for (int l = 1; l < other.length; l++)
+            h[l] += other[l];
+        return(h);
+    }
+
+
+    /**
+     * Total count of histogram
+     */
+    public static long sum(long[] h) {
+        long n = 0;
+        for (int l = 1; l < h.length; l++)
+            n += h[l];
+        return(n);
+    }
+
+
+    /**
+     * Number of labels with a nonzero count
+     */
+    public static int nbLabels(long[] h) {
+        int n = 0;
+        for (int l = 1; l < h.length; l++)
+            if (h[l] != 0)
+                n++;
+        return(n);
+    }
+
+}
@@ -0,0 +1,312 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+
+/**
+ * Scale normalised and negated 2D Laplacian of Gaussian, applied to each slice of a stack
+ * -sigma² (Gxx + Gyy) is computed with 1D convolutions along x and y, each either direct or through FFT,
+ * whichever is cheaper for sigma and image size
+ * Slices are filtered in parallel, each into a new slice of the returned image
+ * @author ORION-CIRB
+ */
+public class LaplacianOfGaussian {
+
+    private final double sigma;
+    private final int radius;
+    // Gaussian and its second derivative, sampled on [-radius, radius]
+    private final float[] g, g2;
+    private final Map<Integer, Spectra> spectra = new ConcurrentHashMap<>();
+
+
+    public LaplacianOfGaussian(double sigma) {
+        this.sigma = sigma;
+        this.radius = (int) Math.ceil(4*sigma);
+        g = new float[2*radius+1];
+        g2 = new float[2*radius+1];
+        double sum = 0, sum2 = 0;
+        for (int k = -radius; k <= radius; k++) {
+            double v = Math.exp(-k*k / (2*sigma*sigma));
+            g[k+radius] = (float) v;
+            sum += v;
+        }
+        for (int k = -radius; k <= radius; k++) {
+            g[k+radius] /= sum;
+            g2[k+radius] = (float) ((k*k/(sigma*sigma) - 1) / (sigma*sigma) * g[k+radius]);
+            sum2 += g2[k+radius];
+        }
+        // Second derivative kernel must not respond to a constant signal
+        for (int k = 0; k < g2.length; k++)
+            g2[k] -= sum2 * g[k];
+    }
+
+
+    /**
+     * Filter all slices of img
+     */
+    public ImagePlus filter(ImagePlus img) {
+        int width = img.getWidth(), height = img.getHeight(), nSlices = img.getNSlices();
+        ImageStack stack = img.getStack();
+        float[][] out = new float[nSlices][];
+        boolean fftX = useFFT(width), fftY = useFFT(height);
+
+        IntStream.range(0, nSlices).parallel().forEach(z -> {
+            out[z] = new float[width*height];
+            filterSlice(stack.getProcessor(z+1), out[z], width, height, fftX, fftY);
+        });
+
+        ImageStack outStack = new ImageStack(width, height);
+        for (int z = 0; z < nSlices; z++)
+            outStack.addSlice(new FloatProcessor(width, height, out[z]));
+        ImagePlus imgLoG = new ImagePlus(img.getTitle() + "_LoG", outStack);
+        imgLoG.setCalibration(img.getCalibration());
+        return(imgLoG);
+    }
+
+
+    /**
+     * Use FFT along lines of length n if it costs less than direct convolution
+     * Direct: two symmetric kernels of radius+1 taps, FFT: one forward and one inverse complex transform
+     */
+    private boolean useFFT(int n) {
+        int size = fftSize(n);
+        double fftCost = 2 * 5 * log2(size) * size / (double) n;
+        double directCost = 2 * (radius + 1);
+        return(fftCost < directCost);
+    }
+
+
+    private int fftSize(int n) {
+        int size = 1;
+        while (size < n + 2*radius)
+            size <<= 1;
+        return(size);
+    }
+
+
+    private static int log2(int n) {
+        return(31 - Integer.numberOfLeadingZeros(n));
+    }
+
+
+    /**
+     * out = -sigma² (conv_y(g, conv_x(g2, in)) + conv_y(g2, conv_x(g, in)))
+     */
+    private void filterSlice(ImageProcessor ip, float[] out, int width, int height, boolean fftX, boolean fftY) {
+        float[] a = new float[width*height];
+        float[] b = new float[width*height];
+
+        // Along x: a = conv(g2, in), b = conv(g, in)
+        float[] line = new float[width];
+        float[] la = new float[width], lb = new float[width];
+        Spectra sx = fftX ? getSpectra(fftSize(width)) : null;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++)
+                line[x] = ip.getf(x + y*width);
+            if (fftX)
+                sx.convolvePair(line, width, la, lb);
+            else
+                convolvePair(line, width, la, lb);
+            System.arraycopy(la, 0, a, y*width, width);
+            System.arraycopy(lb, 0, b, y*width, width);
+        }
+
+        // Along y: out = -sigma² (conv(g, a) + conv(g2, b))
+        float[] ca = new float[height], cb = new float[height], res = new float[height];
+        Spectra sy = fftY ? getSpectra(fftSize(height)) : null;
+        float norm = (float) (-sigma*sigma);
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                ca[y] = a[x + y*width];
+                cb[y] = b[x + y*width];
+            }
+            if (fftY)
+                sy.convolveSum(ca, cb, height, res);
+            else
+                convolveSum(ca, cb, height, res);
+            for (int y = 0; y < height; y++)
+                out[x + y*width] = norm * res[y];
+        }
+    }
+
+
+    /**
+     * Pad line with its edge values on both sides
+     */
+    private float[] pad(float[] in, int n) {
+        float[] p = new float[n + 2*radius];
+        for (int i = 0; i < p.length; i++)
+            p[i] = in[Math.min(n-1, Math.max(0, i - radius))];
+        return(p);
+    }
+
+
+    /**
+     * Direct convolution of in with g2 and g
+     */
+    private void convolvePair(float[] in, int n, float[] outG2, float[] outG) {
+        float[] p = pad(in, n);
+        for (int i = 0; i < n; i++) {
+            int c = i + radius;
+            float s2 = g2[radius] * p[c], s = g[radius] * p[c];
+            for (int k = 1; k <= radius; k++) {
+                float v = p[c-k] + p[c+k];
+                s2 += g2[radius+k] * v;
+                s += g[radius+k] * v;
+            }
+            outG2[i] = s2;
+            outG[i] = s;
+        }
+    }
+
+
+    /**
+     * Direct convolution conv(g, inG) + conv(g2, inG2)
+     */
+    private void convolveSum(float[] inG, float[] inG2, int n, float[] out) {
+        float[] p = pad(inG, n), p2 = pad(inG2, n);
+        for (int i = 0; i < n; i++) {
+            int c = i + radius;
+            float s = g[radius] * p[c] + g2[radius] * p2[c];
+            for (int k = 1; k <= radius; k++)
+                s += g[radius+k] * (p[c-k] + p[c+k]) + g2[radius+k] * (p2[c-k] + p2[c+k]);
+            out[i] = s;
+        }
+    }
+
+
+    private Spectra getSpectra(int size) {
+        return(spectra.computeIfAbsent(size, Spectra::new));
+    }
+
+
+    /**
+     * Spectra of g and g2 for FFT convolution of lines padded to size
+     * Kernels are symmetric so their spectra are real
+     */
+    private class Spectra {
+
+        private final int size;
+        private final double[] kg, kg2;
+        private final double[] cos, sin;
+        private final int[] rev;
+
+
+        Spectra(int size) {
+            this.size = size;
+            cos = new double[size/2];
+            sin = new double[size/2];
+            for (int i = 0; i < size/2; i++) {
+                cos[i] = Math.cos(2*Math.PI*i/size);
+                sin[i] = Math.sin(2*Math.PI*i/size);
+            }
+            rev = new int[size];
+            int bits = log2(size);
+            for (int i = 0; i < size; i++)
+                rev[i] = Integer.reverse(i) >>> (32 - bits);
+
+            kg = new double[size];
+            kg2 = new double[size];
+            for (int u = 0; u < size; u++) {
+                double sg = g[radius], sg2 = g2[radius];
+                for (int k = 1; k <= radius; k++) {
+                    double c = 2 * Math.cos(2*Math.PI * ((long) u*k % size) / size);
+                    sg += g[radius+k] * c;
+                    sg2 += g2[radius+k] * c;
+                }
+                kg[u] = sg;
+                kg2[u] = sg2;
+            }
+        }
+
+
+        /**
+         * In place radix-2 FFT, inverse transform is scaled by 1/size
+         */
+        private void fft(double[] re, double[] im, boolean inverse) {
+            for (int i = 0; i < size; i++) {
+                int j = rev[i];
+                if (j > i) {
+                    double t = re[i]; re[i] = re[j]; re[j] = t;
+                    t = im[i]; im[i] = im[j]; im[j] = t;
+                }
+            }
+            for (int len = 2; len <= size; len <<= 1) {
+                int half = len >> 1, step = size / len;
+                for (int i = 0; i < size; i += len) {
+                    for (int k = 0; k < half; k++) {
+                        double wr = cos[k*step], wi = inverse ? sin[k*step] : -sin[k*step];
+                        int p = i + k, q = p + half;
+                        double tr = re[q]*wr - im[q]*wi;
+                        double ti = re[q]*wi + im[q]*wr;
+                        re[q] = re[p] - tr;
+                        im[q] = im[p] - ti;
+                        re[p] += tr;
+                        im[p] += ti;
+                    }
+                }
+            }
+            if (inverse) {
+                for (int i = 0; i < size; i++) {
+                    re[i] /= size;
+                    im[i] /= size;
+                }
+            }
+        }
+
+
+        /**
+         * FFT version of convolvePair: both convolutions from one forward and one inverse transform
+         */
+        void convolvePair(float[] in, int n, float[] outG2, float[] outG) {
+            double[] re = new double[size], im = new double[size];
+            for (int i = 0; i < size; i++)
+                re[i] = in[Math.min(n-1, Math.max(0, i - radius))];
+            fft(re, im, false);
+            // Spectrum of conv(g2, in) + i conv(g, in)
+            for (int u = 0; u < size; u++) {
+                double fr = re[u], fi = im[u];
+                re[u] = fr*kg2[u] - fi*kg[u];
+                im[u] = fi*kg2[u] + fr*kg[u];
+            }
+            fft(re, im, true);
+            for (int i = 0; i < n; i++) {
+                outG2[i] = (float) re[i + radius];
+                outG[i] = (float) im[i + radius];
+            }
+        }
+
+
+        /**
+         * FFT version of convolveSum: inG and inG2 are transformed together as real and imaginary parts
+         */
+        void convolveSum(float[] inG, float[] inG2, int n, float[] out) {
+            double[] re = new double[size], im = new double[size];
+            for (int i = 0; i < size; i++) {
+                int j = Math.min(n-1, Math.max(0, i - radius));
+                re[i] = inG[j];
+                im[i] = inG2[j];
+            }
+            fft(re, im, false);
+            double[] rr = new double[size], ri = new double[size];
+            for (int u = 0; u < size; u++) {
+                int v = (size - u) % size;
+                // Spectra of inG (fa) and inG2 (fb) separated from the joint transform
+                double far = (re[u] + re[v]) / 2, fai = (im[u] - im[v]) / 2;
+                double fbr = (im[u] + im[v]) / 2, fbi = -(re[u] - re[v]) / 2;
+                rr[u] = kg[u]*far + kg2[u]*fbr;
+                ri[u] = kg[u]*fai + kg2[u]*fbi;
+            }
+            fft(rr, ri, true);
+            for (int i = 0; i < n; i++)
+                out[i] = (float) rr[i + radius];
+        }
+    }
+
+}
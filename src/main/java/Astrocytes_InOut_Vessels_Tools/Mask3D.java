@@ -0,0 +1,139 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import java.util.stream.IntStream;
+import mcib3d.image3d.ImageHandler;
+
+
+/**
+ * Binary 3D mask, indexed by slice z and position i = x + y*width in the slice
+ * Logical operations are done in place and return this mask
+ * Masks are converted to images only at the boundaries of the analysis (drawing, mcib3d objects)
+ * Slices may be processed in parallel, but a slice must not be written from several threads
+ * @author ORION-CIRB
+ */
+public interface Mask3D {
+
+    int getWidth();
+
+    int getHeight();
+
+    int getDepth();
+
+    boolean get(int i, int z);
+
+    void set(int i, int z, boolean value);
+
+
+    /**
+     * Number of voxels set
+     */
+    default long cardinality() {
+        long n = 0;
+        for (int z = 0; z < getDepth(); z++)
+            for (int i = 0; i < getWidth()*getHeight(); i++)
+                if (get(i, z))
+                    n++;
+        return(n);
+    }
+
+
+    default Mask3D and(Mask3D other) {
+        IntStream.range(0, getDepth()).parallel().forEach(z -> {
+            for (int i = 0; i < getWidth()*getHeight(); i++)
+                if (get(i, z) && !other.get(i, z))
+                    set(i, z, false);
+        });
+        return(this);
+    }
+
+
+    default Mask3D or(Mask3D other) {
+        IntStream.range(0, getDepth()).parallel().forEach(z -> {
+            for (int i = 0; i < getWidth()*getHeight(); i++)
+                if (other.get(i, z))
+                    set(i, z, true);
+        });
+        return(this);
+    }
+
+
+    default Mask3D andNot(Mask3D other) {
+        IntStream.range(0, getDepth()).parallel().forEach(z -> {
+            for (int i = 0; i < getWidth()*getHeight(); i++)
+                if (other.get(i, z))
+                    set(i, z, false);
+        });
+        return(this);
+    }
+
+
+    /**
+     * Number of voxels set in [from, to[ of slice z
+     */
+    default long cardinality(int z, int from, int to) {
+        long n = 0;
+        for (int i = from; i < to; i++)
+            if (get(i, z))
+                n++;
+        return(n);
+    }
+
+
+    /**
+     * First voxel set in [from, to[ of slice z, to if none
+     */
+    default int nextSet(int z, int from, int to) {
+        int i = from;
+        while (i < to && !get(i, z))
+            i++;
+        return(i);
+    }
+
+
+    /**
+     * First voxel not set in [from, to[ of slice z, to if none
+     */
+    default int nextClear(int z, int from, int to) {
+        int i = from;
+        while (i < to && get(i, z))
+            i++;
+        return(i);
+    }
+
+
+    /**
+     * Set voxels [from, to[ of slice z
+     */
+    default void setRange(int z, int from, int to) {
+        for (int i = from; i < to; i++)
+            set(i, z, true);
+    }
+
+
+    /**
+     * 8-bit image, value where mask is set and 0 elsewhere
+     */
+    default ImagePlus toImagePlus(String title, int value) {
+        int width = getWidth(), height = getHeight();
+        byte[][] slices = new byte[getDepth()][];
+        IntStream.range(0, getDepth()).parallel().forEach(z -> {
+            byte[] pixels = new byte[width*height];
+            for (int i = 0; i < pixels.length; i++)
+                if (get(i, z))
+                    pixels[i] = (byte) value;
+            slices[z] = pixels;
+        });
+        ImageStack stack = new ImageStack(width, height);
+        for (byte[] pixels: slices)
+            stack.addSlice(null, pixels);
+        return(new ImagePlus(title, stack));
+    }
+
+
+    default ImageHandler toImageHandler(String title, int value) {
+        return(ImageHandler.wrap(toImagePlus(title, value)));
+    }
+
+}
@@ -0,0 +1,99 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+
+/**
+ * Results of an image in one pass over its labels
+ * Vessels, dilated vessels and astrocytes labels are read slice by slice into per-label voxel histograms,
+ * every column of the results table is then a metric of these histograms
+ * Slabs of slices are counted in parallel, each in its own histograms
+ * @author ORION-CIRB
+ */
+public class MeasurementEngine {
+
+    /**
+     * Columns of results.xls
+     */
+    public static final List<Metric> DEFAULT_METRICS = Arrays.asList(
+            Metric.of("Image vol (µm3)", (h, p) -> h.imageVoxels * p.pixVol),
+            Metric.of("Image-ROI vol (µm3)", (h, p) -> h.imageVoxels * p.pixVol - h.roiVoxels * p.pixVol),
+            Metric.of("Vessels vol (µm3)", (h, p) -> LabelHistograms.sum(h.vessels) * p.pixVol),
+            Metric.of("Dilated vessels vol (µm3)", (h, p) -> LabelHistograms.sum(h.dilVessels) * p.pixVol),
+            Metric.of("Astrocytes vol in vessels (µm3)", (h, p) -> LabelHistograms.sum(h.astroIn) * p.pixVol),
+            Metric.of("Astrocytes vol out vessels (µm3)", (h, p) -> LabelHistograms.sum(h.astroOut) * p.pixVol));
+
+    private final List<Metric> metrics;
+
+
+    public MeasurementEngine() {
+        this(DEFAULT_METRICS);
+    }
+
+
+    public MeasurementEngine(List<Metric> metrics) {
+        this.metrics = new ArrayList<>(metrics);
+    }
+
+
+    /**
+     * Header of results table, image name followed by metrics columns
+     */
+    public String getHeader() {
+        StringBuilder header = new StringBuilder("Image name");
+        for (Metric m: metrics)
+            header.append('\t').append(m.getColumn());
+        return(header.append('\n').toString());
+    }
+
+
+    /**
+     * Results row of image imgName from its histograms
+     */
+    public String getRow(String imgName, LabelHistograms h, Parameters params) {
+        StringBuilder row = new StringBuilder(imgName);
+        for (Metric m: metrics)
+            row.append('\t').append(m.getValue(h, params));
+        return(row.append('\n').toString());
+    }
+
+
+    /**
+     * Histograms of vessels and dilated vessels label images and of astrocytes population, with ROIs of roiMask
+     */
+    public LabelHistograms measure(ImagePlus imgVesselLabels, ImagePlus imgDilVessels, RunLengthPopulation astrocytesPop, RoiMask roiMask) {
+        int size = imgVesselLabels.getWidth() * imgVesselLabels.getHeight(), depth = imgVesselLabels.getNSlices();
+        ImageStack vessels = imgVesselLabels.getStack(), dilVessels = imgDilVessels.getStack();
+        int[][] astroRuns = astrocytesPop.getSliceRuns();
+        long roiArea = roiMask.getArea();
+
+        int nbSlabs = Math.max(1, Math.min(depth, Runtime.getRuntime().availableProcessors()));
+        LabelHistograms[] slabs = new LabelHistograms[nbSlabs];
+        IntStream.range(0, nbSlabs).parallel().forEach(s -> {
+            LabelHistograms h = new LabelHistograms();
+            int[] vesselLab = new int[size], dilLab = new int[size], astroLab = new int[size];
+            for (int z = s * depth / nbSlabs; z < (s+1) * depth / nbSlabs; z++) {
+                RunLengthPopulation.readLabels(vessels.getPixels(z+1), vesselLab);
+                RunLengthPopulation.readLabels(dilVessels.getPixels(z+1), dilLab);
+                int[] runs = astroRuns[z];
+                for (int r = 0; r < runs.length; r += 3)
+                    Arrays.fill(astroLab, runs[r+1], runs[r+2], runs[r]);
+                h.accumulate(vesselLab, dilLab, astroLab, roiArea);
+                for (int r = 0; r < runs.length; r += 3)
+                    Arrays.fill(astroLab, runs[r+1], runs[r+2], 0);
+            }
+            slabs[s] = h;
+        });
+
+        LabelHistograms h = new LabelHistograms();
+        for (LabelHistograms slab: slabs)
+            h.add(slab);
+        return(h);
+    }
+
+}
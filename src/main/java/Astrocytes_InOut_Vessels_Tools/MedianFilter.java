@@ -0,0 +1,189 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.stream.IntStream;
+
+
+/**
+ * 2D median filter of each slice of an 8 or 16-bit stack, with the circular kernel of ImageJ "Median..." of same radius
+ * Sliding histogram of the window (Huang), moved along rows in a serpentine scan: each step adds and removes one
+ * voxel per kernel line, and the median is tracked from the previous one, so that the cost grows with the radius, not its square
+ * Image edges are padded with nearest values, as in ImageJ
+ * Slices are filtered in parallel, each into a new slice of the returned image
+ * @author ORION-CIRB
+ */
+public class MedianFilter {
+
+    private final double radius;
+    // Kernel half width of each line, from -kRadius to kRadius
+    private final int kRadius;
+    private final int[] lineRadii;
+    private final int rank;
+
+
+    public MedianFilter(double radius) {
+        this.radius = radius;
+        // Same kernel as ImageJ RankFilters
+        double rad = radius;
+        if (rad >= 1.5 && rad < 1.75)
+            rad = 1.75;
+        else if (rad >= 2.5 && rad < 2.85)
+            rad = 2.85;
+        int r2 = (int) (rad*rad) + 1;
+        kRadius = (int) Math.sqrt(r2 + 1e-10);
+        lineRadii = new int[2*kRadius + 1];
+        int nPoints = 0;
+        for (int dy = -kRadius; dy <= kRadius; dy++) {
+            lineRadii[dy + kRadius] = (dy == 0) ? kRadius : (int) Math.sqrt(r2 - dy*dy + 1e-10);
+            nPoints += 2*lineRadii[dy + kRadius] + 1;
+        }
+        rank = nPoints / 2;
+    }
+
+
+    /**
+     * Filter all slices of img
+     */
+    public ImagePlus filter(ImagePlus img) {
+        int bitDepth = img.getBitDepth();
+        if (bitDepth != 8 && bitDepth != 16) {
+            ImagePlus imgMed = img.duplicate();
+            IJ.run(imgMed, "Median...", "radius=" + radius + " stack");
+            return(imgMed);
+        }
+
+        int width = img.getWidth(), height = img.getHeight(), nSlices = img.getNSlices();
+        ImageStack stack = img.getStack();
+        Object[] out = new Object[nSlices];
+        IntStream.range(0, nSlices).parallel().forEach(z -> {
+            out[z] = (bitDepth == 8) ? new byte[width*height] : new short[width*height];
+            filterSlice(stack.getPixels(z+1), out[z], width, height);
+        });
+
+        ImageStack outStack = new ImageStack(width, height);
+        for (int z = 0; z < nSlices; z++) {
+            if (bitDepth == 8)
+                outStack.addSlice(new ByteProcessor(width, height, (byte[]) out[z]));
+            else
+                outStack.addSlice(new ShortProcessor(width, height, (short[]) out[z], null));
+        }
+        ImagePlus imgMed = new ImagePlus(img.getTitle() + "_median", outStack);
+        imgMed.setCalibration(img.getCalibration());
+        return(imgMed);
+    }
+
+
+    private static int get(Object pixels, int i) {
+        return((pixels instanceof byte[]) ? ((byte[]) pixels)[i] & 0xff : ((short[]) pixels)[i] & 0xffff);
+    }
+
+
+    private static void set(Object pixels, int i, int v) {
+        if (pixels instanceof byte[])
+            ((byte[]) pixels)[i] = (byte) v;
+        else
+            ((short[]) pixels)[i] = (short) v;
+    }
+
+
+    /**
+     * Histogram of the window and its median, updated as voxels enter and leave the window
+     */
+    private static class Window {
+        final int[] hist;
+        final int rank;
+        // Median, and number of voxels of the window below it
+        int median = 0, below = 0;
+
+        Window(int max, int rank) {
+            this.hist = new int[max + 1];
+            this.rank = rank;
+        }
+
+        void add(int v) {
+            hist[v]++;
+            if (v < median)
+                below++;
+        }
+
+        void remove(int v) {
+            hist[v]--;
+            if (v < median)
+                below--;
+        }
+
+        int getMedian() {
+            while (below > rank)
+                below -= hist[--median];
+            while (below + hist[median] <= rank)
+                below += hist[median++];
+            return(median);
+        }
+    }
+
+
+    /**
+     * Filter one slice: rows are scanned alternately left to right and right to left,
+     * the window moving down by one row at each row end
+     */
+    private void filterSlice(Object in, Object out, int width, int height) {
+        int max = 0;
+        for (int i = 0; i < width*height; i++)
+            max = Math.max(max, get(in, i));
+        Window w = new Window(max, rank);
+        addWindow(w, in, 0, 0, width, height, 1);
+        for (int y = 0; y < height; y++) {
+            boolean right = (y % 2 == 0);
+            int x = right ? 0 : width - 1;
+            for (int n = 0; n < width; n++) {
+                set(out, x + y*width, w.getMedian());
+                if (n == width - 1)
+                    break;
+                // Move window by one voxel: each kernel line loses its trailing voxel and gains a leading one
+                for (int dy = -kRadius; dy <= kRadius; dy++) {
+                    int row = clamp(y + dy, height) * width, lr = lineRadii[dy + kRadius];
+                    if (right) {
+                        w.remove(get(in, row + clamp(x - lr, width)));
+                        w.add(get(in, row + clamp(x + lr + 1, width)));
+                    } else {
+                        w.remove(get(in, row + clamp(x + lr, width)));
+                        w.add(get(in, row + clamp(x - lr - 1, width)));
+                    }
+                }
+                x += right ? 1 : -1;
+            }
+            if (y < height - 1) {
+                addWindow(w, in, x, y, width, height, -1);
+                addWindow(w, in, x, y + 1, width, height, 1);
+            }
+        }
+    }
+
+
+    /**
+     * Add (n = 1) or remove (n = -1) voxels of the window centered on x, y
+     */
+    private void addWindow(Window w, Object in, int x, int y, int width, int height, int n) {
+        for (int dy = -kRadius; dy <= kRadius; dy++) {
+            int row = clamp(y + dy, height) * width, lr = lineRadii[dy + kRadius];
+            for (int dx = -lr; dx <= lr; dx++) {
+                int v = get(in, row + clamp(x + dx, width));
+                if (n > 0)
+                    w.add(v);
+                else
+                    w.remove(v);
+            }
+        }
+    }
+
+
+    private static int clamp(int v, int size) {
+        return(Math.min(size-1, Math.max(0, v)));
+    }
+
+}
@@ -0,0 +1,51 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import java.util.concurrent.Semaphore;
+
+
+/**
+ * Heap budget shared by images analyzed at the same time
+ * Counted in MB so that estimates of several GB fit in a semaphore
+ * @author ORION-CIRB
+ */
+public class MemoryBudget {
+
+    private final int totalMB;
+    private final Semaphore permits;
+
+
+    /**
+     * Budget of a fraction of the heap still available to the JVM
+     */
+    public MemoryBudget(double fraction) {
+        Runtime rt = Runtime.getRuntime();
+        long free = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+        totalMB = (int) Math.max(1, fraction * free / (1024*1024));
+        permits = new Semaphore(totalMB, true);
+    }
+
+
+    /**
+     * Block until bytes are available and reserve them
+     * A request larger than the whole budget waits for the budget to be entirely free
+     */
+    public int acquire(long bytes) throws InterruptedException {
+        int mb = (int) Math.min(totalMB, Math.max(1, bytes / (1024*1024)));
+        permits.acquire(mb);
+        return(mb);
+    }
+
+
+    /**
+     * Give back MB reserved by acquire
+     */
+    public void release(int mb) {
+        permits.release(mb);
+    }
+
+
+    public int getTotalMB() {
+        return(totalMB);
+    }
+
+}
@@ -0,0 +1,32 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import java.util.function.ToDoubleBiFunction;
+
+
+/**
+ * Per-image measurement, a column of the results table computed from the label histograms of the image
+ * Metrics read histograms only, so adding one costs no extra pass over the image
+ * @author ORION-CIRB
+ */
+public interface Metric {
+
+    String getColumn();
+
+    double getValue(LabelHistograms h, Parameters params);
+
+
+    static Metric of(String column, ToDoubleBiFunction<LabelHistograms, Parameters> value) {
+        return(new Metric() {
+            @Override
+            public String getColumn() {
+                return(column);
+            }
+
+            @Override
+            public double getValue(LabelHistograms h, Parameters params) {
+                return(value.applyAsDouble(h, params));
+            }
+        });
+    }
+
+}
@@ -0,0 +1,23 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import java.util.List;
+
+
+/**
+ * Receiver of the stage metrics recorded by Instrumentation, called once per image and once at the end of the run
+ * Calls may come from several threads at once
+ * @author ORION-CIRB
+ */
+public interface MetricsSink {
+
+    /**
+     * Stages of image imageName, in the order they were first started
+     */
+    void imageDone(String imageName, List<Instrumentation.StageRecord> stages);
+
+    /**
+     * Stages summed over the nbImages images of the run, and wall time of the run
+     */
+    void runDone(List<Instrumentation.StageRecord> stages, int nbImages, long wallNanos);
+
+}
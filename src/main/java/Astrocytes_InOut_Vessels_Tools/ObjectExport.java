@@ -0,0 +1,75 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import java.io.File;
+import java.io.IOException;
+
+
+/**
+ * Per-object results of an image: one row per part of astrocytic object in or out of vessels
+ * Nearest vessel and distance to it come from one distance transform of vessels labels
+ * Rows are written in results folder Objects/, as rootName_objects.csv.gz and rootName_objects.bin
+ * @author ORION-CIRB
+ */
+public class ObjectExport {
+
+    public static final String[] COLUMNS = {"Label", "In vessels", "Volume (µm3)", "Centroid X (pixels)", "Centroid Y (pixels)", "Centroid Z (slices)",
+        "Xmin", "Xmax", "Ymin", "Ymax", "Zmin", "Zmax", "Nearest vessel", "Distance to nearest vessel (µm)"};
+    private static final boolean[] IS_INT = {true, true, false, false, false, false, true, true, true, true, true, true, true, false};
+
+    private final Parameters params;
+
+
+    public ObjectExport(Parameters params) {
+        this.params = params;
+    }
+
+
+    /**
+     * Measure astrocytes in vessels then out of vessels, with distance transform edt of vessels labels, and write their rows
+     * as they are measured in Objects folder of outDirResults, so that the table of the image is never held in memory
+     * Return number of rows written
+     */
+    public int write(RunLengthPopulation astroIn, RunLengthPopulation astroOut, DistanceTransform edt, String outDirResults, String rootName) throws IOException {
+        File[] files = getFiles(outDirResults, rootName);
+        files[0].getParentFile().mkdirs();
+        double[] row = new double[COLUMNS.length];
+        try (ObjectTableWriter writer = new ObjectTableWriter(files[0], files[1], rootName, COLUMNS, IS_INT)) {
+            for (int k = 0; k < astroIn.getNbObjects(); k++)
+                writer.writeRow(measure(astroIn, k, true, edt, row));
+            for (int k = 0; k < astroOut.getNbObjects(); k++)
+                writer.writeRow(measure(astroOut, k, false, edt, row));
+        }
+        return(astroIn.getNbObjects() + astroOut.getNbObjects());
+    }
+
+
+    /**
+     * CSV and binary files of objects of image rootName
+     */
+    public static File[] getFiles(String outDirResults, String rootName) {
+        File dir = new File(outDirResults, "Objects");
+        return(new File[] {new File(dir, rootName + "_objects.csv.gz"), new File(dir, rootName + "_objects.bin")});
+    }
+
+
+    /**
+     * Fill row with measures of object k of pop
+     */
+    private double[] measure(RunLengthPopulation pop, int k, boolean in, DistanceTransform edt, double[] row) {
+        double[] c = pop.getCentroid(k);
+        int[] box = pop.getBoundingBox(k);
+        int[] nearest = pop.getMinVoxel(k, edt::getSquaredDistances);
+        int vessel = edt.getLabels(nearest[0])[nearest[1]];
+        double dist = (vessel == 0) ? Double.NaN : Math.sqrt(edt.getSquaredDistances(nearest[0])[nearest[1]]);
+        row[0] = pop.getLabel(k);
+        row[1] = in ? 1 : 0;
+        row[2] = pop.getNbVoxels(k) * params.pixVol;
+        System.arraycopy(c, 0, row, 3, 3);
+        for (int b = 0; b < 6; b++)
+            row[6 + b] = box[b];
+        row[12] = vessel;
+        row[13] = dist;
+        return(row);
+    }
+
+}
@@ -0,0 +1,157 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * Streaming writer of a table of objects, as gzip compressed CSV and as binary columns
+ * Rows are written to CSV as they come, and buffered in row groups of ROW_GROUP rows for the binary file
+ * Binary file (big-endian): "AIVO", version, image name (UTF), number of columns, then name (UTF) and type
+ * ('I' int32 or 'D' float64) of each column, then row groups, each a number of rows followed by the values
+ * of each column in turn, ended by a row group of 0 rows
+ * Image name is quoted in CSV rows, as it may hold commas
+ * Files are written under temporary names and renamed when the writer is closed, or deleted if writing failed
+ * @author ORION-CIRB
+ */
+public class ObjectTableWriter implements Closeable {
+
+    private static final int VERSION = 1;
+    private static final int ROW_GROUP = 65536;
+
+    private final File csvFile, binFile, csvTmp, binTmp;
+    private final String csvName;
+    private final boolean[] isInt;
+    private final BufferedWriter csv;
+    private final DataOutputStream bin;
+    private final double[][] group;
+    private int nbRows = 0;
+    private boolean failed = false;
+
+
+    /**
+     * Table of objects of image imageName with columns, isInt[c] telling if values of column c are integers
+     */
+    public ObjectTableWriter(File csvFile, File binFile, String imageName, String[] columns, boolean[] isInt) throws IOException {
+        this.csvFile = csvFile;
+        this.binFile = binFile;
+        this.csvTmp = new File(csvFile.getPath() + ".tmp");
+        this.binTmp = new File(binFile.getPath() + ".tmp");
+        this.csvName = "\"" + imageName.replace("\"", "\"\"") + "\"";
+        this.isInt = isInt;
+        group = new double[columns.length][ROW_GROUP];
+
+        BufferedWriter csvWriter = null;
+        DataOutputStream binStream = null;
+        try {
+            csvWriter = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(csvTmp), 1 << 16), StandardCharsets.UTF_8), 1 << 16);
+            csvWriter.write("Image name");
+            for (String col: columns)
+                csvWriter.write("," + col);
+            csvWriter.newLine();
+
+            binStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(binTmp), 1 << 16));
+            binStream.writeBytes("AIVO");
+            binStream.writeInt(VERSION);
+            binStream.writeUTF(imageName);
+            binStream.writeInt(columns.length);
+            for (int c = 0; c < columns.length; c++) {
+                binStream.writeUTF(columns[c]);
+                binStream.writeByte(isInt[c] ? 'I' : 'D');
+            }
+        } catch (IOException ex) {
+            closeQuietly(csvWriter, binStream);
+            deleteTemporaryFiles();
+            throw ex;
+        }
+        csv = csvWriter;
+        bin = binStream;
+    }
+
+
+    /**
+     * Append a row, one value per column
+     */
+    public void writeRow(double[] values) throws IOException {
+        // Cleared only once the row is written, so that close deletes files left incomplete by any exception
+        failed = true;
+        csv.write(csvName);
+        for (int c = 0; c < values.length; c++) {
+            csv.write(',');
+            csv.write(isInt[c] ? Long.toString((long) values[c]) : Double.toString(values[c]));
+            group[c][nbRows] = values[c];
+        }
+        csv.newLine();
+        if (++nbRows == ROW_GROUP)
+            flushGroup();
+        failed = false;
+    }
+
+
+    private void flushGroup() throws IOException {
+        bin.writeInt(nbRows);
+        for (int c = 0; c < group.length; c++) {
+            for (int r = 0; r < nbRows; r++) {
+                if (isInt[c])
+                    bin.writeInt((int) group[c][r]);
+                else
+                    bin.writeDouble(group[c][r]);
+            }
+        }
+        nbRows = 0;
+    }
+
+
+    /**
+     * Finish files and rename them, delete them if a row could not be written or if finishing them fails
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!failed) {
+                if (nbRows > 0)
+                    flushGroup();
+                bin.writeInt(0);
+            }
+            bin.close();
+            csv.close();
+            if (failed)
+                throw new IOException("Rows of " + csvFile + " not all written");
+            Files.move(csvTmp.toPath(), csvFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(binTmp.toPath(), binFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            closeQuietly(csv, bin);
+            deleteTemporaryFiles();
+            throw ex;
+        }
+    }
+
+
+    private static void closeQuietly(Closeable... streams) {
+        for (Closeable stream: streams) {
+            try {
+                if (stream != null)
+                    stream.close();
+            } catch (IOException ex) {
+                // Already failing, files are deleted
+            }
+        }
+    }
+
+
+    private void deleteTemporaryFiles() {
+        csvTmp.delete();
+        binTmp.delete();
+    }
+
+}
@@ -0,0 +1,185 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Result image of an image: vessels, astrocytes in and astrocytes out of vessels, rendered slice by slice
+ * into an 8-bit TIFF written as slices are produced
+ * Modes: "composite" (astrocytes in red, out green, vessels blue, one channel each), "labels" (one channel of
+ * voxel classes VESSEL | ASTRO_IN | ASTRO_OUT, with the same colors as a palette) or "none"
+ * Overlays can be downsampled in XY, a voxel of the overlay holding the classes of the voxels it covers
+ * Overlays are written one after the other on a background thread
+ * @author ORION-CIRB
+ */
+public class OverlayWriter {
+
+    public static final String[] MODES = {"composite", "labels", "none"};
+    public static final byte VESSEL = 1, ASTRO_IN = 2, ASTRO_OUT = 4;
+
+    private final String mode;
+    private final int downsample;
+    private final String compression;
+    private final double pixelWidth, pixelDepth;
+    private ExecutorService thread = null;
+
+
+    /**
+     * Voxel classes of a stack, slice by slice
+     */
+    public interface SliceClasses {
+        byte[] getClasses(int z) throws IOException;
+    }
+
+
+    public OverlayWriter(Parameters params) {
+        this.mode = params.overlay;
+        this.downsample = params.overlayDownsample;
+        this.compression = params.overlayCompression;
+        this.pixelWidth = params.pixelWidth;
+        this.pixelDepth = params.pixelDepth;
+    }
+
+
+    public boolean isEnabled() {
+        return(!mode.equals("none"));
+    }
+
+
+    /**
+     * Voxel classes of vessels, astrocytes in and astrocytes out populations
+     */
+    public static SliceClasses of(RunLengthPopulation vessels, RunLengthPopulation astroIn, RunLengthPopulation astroOut, int width, int height) {
+        int[][][] runs = {vessels.getSliceRuns(), astroIn.getSliceRuns(), astroOut.getSliceRuns()};
+        byte[] classes = {VESSEL, ASTRO_IN, ASTRO_OUT};
+        return(z -> {
+            byte[] slice = new byte[width*height];
+            for (int p = 0; p < runs.length; p++) {
+                int[] r = runs[p][z];
+                for (int k = 0; k < r.length; k += 3)
+                    for (int i = r[k+1]; i < r[k+2]; i++)
+                        slice[i] |= classes[p];
+            }
+            return(slice);
+        });
+    }
+
+
+    /**
+     * Write overlay of depth slices of width x height voxel classes in file
+     */
+    public void write(SliceClasses source, int width, int height, int depth, File file) throws IOException {
+        int w = (width + downsample - 1) / downsample, h = (height + downsample - 1) / downsample;
+        boolean composite = mode.equals("composite");
+        int nbChannels = composite ? 3 : 1;
+        try (TiffWriter tiff = new TiffWriter(file, w, h, nbChannels * depth, compression, getDescription(nbChannels, depth),
+                composite ? null : getColorMap(), pixelWidth * downsample)) {
+            byte[] channel = new byte[w*h];
+            for (int z = 0; z < depth; z++) {
+                byte[] classes = downsample(source.getClasses(z), width, height, w, h);
+                if (!composite) {
+                    tiff.writeImage(classes);
+                    continue;
+                }
+                for (byte c: new byte[] {ASTRO_IN, ASTRO_OUT, VESSEL}) {
+                    for (int i = 0; i < classes.length; i++)
+                        channel[i] = ((classes[i] & c) != 0) ? (byte) 255 : 0;
+                    tiff.writeImage(channel);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Classes of w x h blocks of downsample x downsample voxels
+     */
+    private byte[] downsample(byte[] classes, int width, int height, int w, int h) {
+        if (downsample == 1)
+            return(classes);
+        byte[] small = new byte[w*h];
+        for (int y = 0; y < height; y++) {
+            int row = (y / downsample) * w;
+            for (int x = 0; x < width; x++)
+                small[row + x / downsample] |= classes[x + y*width];
+        }
+        return(small);
+    }
+
+
+    /**
+     * ImageJ description, so that ImageJ opens overlay as a hyperstack with its calibration
+     */
+    private String getDescription(int nbChannels, int depth) {
+        StringBuilder desc = new StringBuilder("ImageJ=1.54f\n");
+        desc.append("images=").append(nbChannels * depth).append('\n');
+        if (nbChannels > 1)
+            desc.append("channels=").append(nbChannels).append('\n');
+        desc.append("slices=").append(depth).append('\n');
+        if (nbChannels > 1)
+            desc.append("hyperstack=true\nmode=composite\n");
+        desc.append("unit=micron\n");
+        desc.append("spacing=").append(pixelDepth).append('\n');
+        desc.append("loop=false\nmin=0.0\nmax=255.0\n");
+        return(desc.toString());
+    }
+
+
+    /**
+     * Palette of classes: astrocytes in red, astrocytes out green, vessels blue, mixed where classes overlap
+     */
+    private static byte[][] getColorMap() {
+        byte[][] map = new byte[3][256];
+        for (int v = 0; v < 8; v++) {
+            map[0][v] = ((v & ASTRO_IN) != 0) ? (byte) 255 : 0;
+            map[1][v] = ((v & ASTRO_OUT) != 0) ? (byte) 255 : 0;
+            map[2][v] = ((v & VESSEL) != 0) ? (byte) 255 : 0;
+        }
+        for (byte[] component: map)
+            Arrays.fill(component, 8, 256, (byte) 255);
+        return(map);
+    }
+
+
+    /**
+     * Run task on background thread, after tasks submitted before
+     */
+    public synchronized void submit(Runnable task) {
+        if (thread == null) {
+            thread = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "overlay-writer");
+                t.setDaemon(true);
+                return(t);
+            });
+        }
+        thread.submit(task);
+    }
+
+
+    /**
+     * Wait for all tasks submitted to be done
+     */
+    public void await() {
+        ExecutorService t;
+        synchronized (this) {
+            t = thread;
+        }
+        if (t == null)
+            return;
+        try {
+            t.submit(() -> {}).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            Logger.getLogger(OverlayWriter.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+}
@@ -0,0 +1,164 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import ij.ImagePlus;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.formats.FormatException;
+import loci.plugins.util.ImageProcessorReader;
+import org.apache.commons.io.FilenameUtils;
+
+
+/**
+ * Evaluate several vessels threshold methods, vessels dilations and astrocytes threshold methods in one pass over the images
+ * Each image is read once and each distinct intermediate is computed once: one median per channel, one LoG,
+ * one segmentation per threshold method, one distance map per vessels segmentation serving all dilations
+ * Label histograms of each combination are then counted from the distance map, without building dilated vessels or objects,
+ * as in "distance" dilation mode, and measured with the metrics of results.xls
+ * Results are written in a long-format table, one row per image and combination
+ * @author ORION-CIRB
+ */
+public class ParameterSweep {
+
+    private final Tools tools;
+    private final Parameters params;
+    private final int[] chIndexes;
+    private final String imageDir;
+    private final List<String> vesselThMethods;
+    private final List<Integer> dilVessels;
+    private final List<String> astroThMethods;
+    private final MeasurementEngine measurements = new MeasurementEngine();
+
+
+    public ParameterSweep(Tools tools, Parameters params, int[] chIndexes, String imageDir,
+            List<String> vesselThMethods, List<Integer> dilVessels, List<String> astroThMethods) {
+        this.tools = tools;
+        this.params = params;
+        this.chIndexes = chIndexes;
+        this.imageDir = imageDir;
+        this.vesselThMethods = vesselThMethods;
+        this.dilVessels = dilVessels;
+        this.astroThMethods = astroThMethods;
+    }
+
+
+    /**
+     * Header of the sweep table: swept parameters followed by metrics columns
+     */
+    public String getHeader() {
+        String header = measurements.getHeader();
+        return("Image name\tVessels threshold method\tVessel dilation (µm)\tAstrocytes threshold method" + header.substring(header.indexOf('\t')));
+    }
+
+
+    /**
+     * Sweep all images and write their rows, images failing are logged and skipped
+     */
+    public void run(List<String> imageFiles, BufferedWriter results) throws IOException {
+        results.write(getHeader());
+        for (String f: imageFiles) {
+            try {
+                results.write(processImage(f));
+                results.flush();
+            } catch (DependencyException | ServiceException | FormatException | IOException ex) {
+                Logger.getLogger(ParameterSweep.class.getName()).log(Level.SEVERE, "Sweep of "+FilenameUtils.getBaseName(f)+" failed", ex);
+            }
+        }
+    }
+
+
+    /**
+     * Return rows of all combinations for image f
+     */
+    public String processImage(String f) throws DependencyException, ServiceException, FormatException, IOException {
+        String rootName = FilenameUtils.getBaseName(f);
+        tools.print("--- SWEEPING IMAGE " + rootName + " ------");
+        ImageProcessorReader reader = tools.createReader(f);
+        ImagePlus[] imgs = tools.openChannels(reader, rootName, chIndexes, params);
+        reader.close();
+        ImagePlus imgVessel = imgs[0], imgMicro = imgs[1], imgAstro = imgs[2];
+        int width = imgAstro.getWidth(), height = imgAstro.getHeight(), depth = imgAstro.getNSlices();
+        RoiMask roiMask = new RoiMask(tools.loadRois(imageDir, rootName), width, height);
+
+        // Astrocytes masks, one per threshold method, from a single median
+        ImagePlus imgAstroMed = tools.filterAstrocytes(imgAstro);
+        int[][][] astroLabels = new int[astroThMethods.size()][][];
+        for (int a = 0; a < astroThMethods.size(); a++) {
+            tools.print("- Astrocytes threshold " + astroThMethods.get(a) + " -");
+            astroLabels[a] = tools.segmentAstrocytes(imgAstroMed.duplicate(), roiMask, astroThMethods.get(a), params).getLabels();
+        }
+        tools.flushCloseImg(imgAstroMed);
+
+        // Microglia mask and vessels LoG, once
+        Mask3D microMask = tools.findMicroglia(imgMicro, params);
+        ImagePlus imgVesselLOG = tools.filterVessels(imgVessel);
+
+        // Squared dilations, in the order given
+        float[] dil2 = new float[dilVessels.size()];
+        for (int k = 0; k < dil2.length; k++)
+            dil2[k] = (float) dilVessels.get(k) * dilVessels.get(k);
+
+        StringBuilder rows = new StringBuilder();
+        for (String vesselTh: vesselThMethods) {
+            tools.print("- Vessels threshold " + vesselTh + " -");
+            ConnectedComponents cc = tools.segmentVessels(imgVesselLOG, microMask, roiMask, vesselTh, params);
+
+            // One distance map for all dilations
+            DistanceTransform edt = new DistanceTransform(width, height, depth, params.pixelWidth, params.pixelDepth);
+            edt.compute(cc.getLabels());
+
+            for (int a = 0; a < astroThMethods.size(); a++) {
+                LabelHistograms[] histograms = measure(cc.getLabels(), edt, astroLabels[a], dil2, roiMask.getArea(), depth);
+                for (int k = 0; k < dil2.length; k++) {
+                    // Metrics row without image name, which opens the row with the swept parameters
+                    String row = measurements.getRow("", histograms[k], params);
+                    rows.append(rootName).append('\t').append(vesselTh).append('\t').append(dilVessels.get(k)).append('\t')
+                        .append(astroThMethods.get(a)).append(row);
+                }
+            }
+        }
+
+        tools.flushCloseImg(imgVesselLOG);
+        for (ImagePlus img: imgs)
+            tools.flushCloseImg(img);
+        return(rows.toString());
+    }
+
+
+    /**
+     * Label histograms of vessels labels, vessels dilated by each squared distance dil2[k] and astrocytes labels,
+     * dilated vessels taking the label of their nearest vessel as in "distance" mode
+     * Slabs of slices are counted in parallel
+     */
+    private LabelHistograms[] measure(int[][] vesselLabels, DistanceTransform edt, int[][] astroLabels, float[] dil2, long roiArea, int depth) {
+        int nbSlabs = Math.max(1, Math.min(depth, Runtime.getRuntime().availableProcessors()));
+        LabelHistograms[][] slabs = new LabelHistograms[nbSlabs][dil2.length];
+        IntStream.range(0, nbSlabs).parallel().forEach(s -> {
+            for (int k = 0; k < dil2.length; k++)
+                slabs[s][k] = new LabelHistograms();
+            int[] dilLab = new int[vesselLabels[0].length];
+            for (int z = s * depth / nbSlabs; z < (s+1) * depth / nbSlabs; z++) {
+                float[] d = edt.getSquaredDistances(z);
+                int[] nearest = edt.getLabels(z);
+                for (int k = 0; k < dil2.length; k++) {
+                    for (int i = 0; i < d.length; i++)
+                        dilLab[i] = (d[i] <= dil2[k]) ? nearest[i] : 0;
+                    slabs[s][k].accumulate(vesselLabels[z], dilLab, astroLabels[z], roiArea);
+                }
+            }
+        });
+        LabelHistograms[] histograms = new LabelHistograms[dil2.length];
+        for (int k = 0; k < dil2.length; k++) {
+            histograms[k] = new LabelHistograms();
+            for (LabelHistograms[] slab: slabs)
+                histograms[k].add(slab[k]);
+        }
+        return(histograms);
+    }
+
+}
@@ -0,0 +1,174 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import ij.measure.Calibration;
+import java.util.Properties;
+
+
+/**
+ * Immutable set of parameters of a run, shared by all images analyzed in it
+ * @author ORION-CIRB
+ */
+public class Parameters {
+
+    // Channels
+    public final String vesselCh;
+    public final String microCh;
+    public final String astroCh;
+
+    // Calibration
+    public final double pixelWidth;
+    public final double pixelDepth;
+    public final double pixVol;
+
+    // Microglia
+    public final String microThMethod;
+
+    // Vessels
+    public final String vesselThMethod;
+    public final double minVesselVol;
+    public final int dilVessel;
+    public final String dilationMode;
+
+    // Astrocytes
+    public final String astroThMethod;
+    public final double minAstroVol;
+
+    // Processing
+    public final String thresholdBackend;
+    public final int parallelImages;
+    public final int cacheSizeMB;
+    public final int slabSlices;
+    // Folder of slab spill files, results folder if empty
+    public final String spillDir;
+    public final boolean exportObjects;
+    public final boolean writeReports;
+    // Distance profile bins upper edges (µm), empty if no profile
+    private final double[] profileBins;
+    // Result image: mode, XY downsampling factor and TIFF compression
+    public final String overlay;
+    public final int overlayDownsample;
+    public final String overlayCompression;
+
+
+    /**
+     * Read parameters from properties, missing keys take their default value
+     */
+    public Parameters(Properties props) {
+        vesselCh = props.getProperty("vesselCh", "0");
+        microCh = props.getProperty("microCh", "1");
+        astroCh = props.getProperty("astroCh", "2");
+
+        pixelWidth = Double.parseDouble(props.getProperty("pixelWidth", "1"));
+        pixelDepth = Double.parseDouble(props.getProperty("pixelDepth", "1"));
+        pixVol = pixelWidth*pixelWidth*pixelDepth;
+
+        microThMethod = props.getProperty("microThMethod", "Moments");
+
+        vesselThMethod = props.getProperty("vesselThMethod", "Triangle");
+        minVesselVol = Double.parseDouble(props.getProperty("minVesselVol", "100"));
+        dilVessel = Integer.parseInt(props.getProperty("dilVessel", "2"));
+        dilationMode = props.getProperty("dilationMode", "objects");
+
+        astroThMethod = props.getProperty("astroThMethod", "Li");
+        minAstroVol = Double.parseDouble(props.getProperty("minAstroVol", "0.2"));
+
+        thresholdBackend = props.getProperty("thresholdBackend", "auto");
+        parallelImages = Math.max(1, Integer.parseInt(props.getProperty("parallelImages", "1")));
+        cacheSizeMB = Math.max(0, Integer.parseInt(props.getProperty("cacheSizeMB", "2048")));
+        slabSlices = Math.max(0, Integer.parseInt(props.getProperty("slabSlices", "0")));
+        spillDir = props.getProperty("spillDir", "");
+        exportObjects = Boolean.parseBoolean(props.getProperty("exportObjects", "false"));
+        writeReports = Boolean.parseBoolean(props.getProperty("writeReports", "false"));
+        profileBins = DistanceProfile.parseEdges(props.getProperty("profileBins", ""));
+        overlay = props.getProperty("overlay", "composite");
+        overlayDownsample = Math.max(1, Integer.parseInt(props.getProperty("overlayDownsample", "1")));
+        overlayCompression = props.getProperty("overlayCompression", "deflate");
+    }
+
+
+    /**
+     * Write parameters as properties
+     */
+    public Properties toProperties() {
+        Properties props = new Properties();
+        props.setProperty("vesselCh", vesselCh);
+        props.setProperty("microCh", microCh);
+        props.setProperty("astroCh", astroCh);
+        props.setProperty("pixelWidth", Double.toString(pixelWidth));
+        props.setProperty("pixelDepth", Double.toString(pixelDepth));
+        props.setProperty("microThMethod", microThMethod);
+        props.setProperty("vesselThMethod", vesselThMethod);
+        props.setProperty("minVesselVol", Double.toString(minVesselVol));
+        props.setProperty("dilVessel", Integer.toString(dilVessel));
+        props.setProperty("dilationMode", dilationMode);
+        props.setProperty("astroThMethod", astroThMethod);
+        props.setProperty("minAstroVol", Double.toString(minAstroVol));
+        props.setProperty("thresholdBackend", thresholdBackend);
+        props.setProperty("parallelImages", Integer.toString(parallelImages));
+        props.setProperty("cacheSizeMB", Integer.toString(cacheSizeMB));
+        props.setProperty("slabSlices", Integer.toString(slabSlices));
+        props.setProperty("spillDir", spillDir);
+        props.setProperty("exportObjects", Boolean.toString(exportObjects));
+        props.setProperty("writeReports", Boolean.toString(writeReports));
+        props.setProperty("profileBins", getProfileBins());
+        props.setProperty("overlay", overlay);
+        props.setProperty("overlayDownsample", Integer.toString(overlayDownsample));
+        props.setProperty("overlayCompression", overlayCompression);
+        return(props);
+    }
+
+
+    /**
+     * Distance profile bins upper edges (µm), a copy so that parameters cannot be changed through it
+     */
+    public double[] getProfileEdges() {
+        return(profileBins.clone());
+    }
+
+
+    public boolean hasProfile() {
+        return(profileBins.length > 0);
+    }
+
+
+    /**
+     * Distance profile bins upper edges as a comma-separated list
+     */
+    public String getProfileBins() {
+        StringBuilder list = new StringBuilder();
+        for (double e: profileBins)
+            list.append((list.length() == 0) ? "" : ",").append(e);
+        return(list.toString());
+    }
+
+
+    /**
+     * Return a copy of these parameters with key set to value
+     */
+    public Parameters with(String key, String value) {
+        Properties props = toProperties();
+        props.setProperty(key, value);
+        return(new Parameters(props));
+    }
+
+
+    /**
+     * Return a new calibration with the pixel sizes of these parameters
+     */
+    public Calibration getCalibration() {
+        Calibration cal = new Calibration();
+        cal.pixelWidth = cal.pixelHeight = pixelWidth;
+        cal.pixelDepth = pixelDepth;
+        cal.setUnit("microns");
+        return(cal);
+    }
+
+
+    /**
+     * Return vessels, microglia and astrocytes channel names
+     */
+    public String[] getChannels() {
+        return(new String[] {vesselCh, microCh, astroCh});
+    }
+
+}
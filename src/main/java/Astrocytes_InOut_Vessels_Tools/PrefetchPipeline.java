@@ -0,0 +1,168 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.FilenameUtils;
+
+
+/**
+ * Analyze images one at a time, overlapping reading of the next image and writing of the previous one with analysis
+ * Three stages linked by bounded queues: a decoder thread reads image N+1 while an analyzer thread analyzes image N
+ * and the calling thread writes drawing and results row of image N-1
+ * An image is admitted by the decoder only once its estimated footprint fits in the heap budget,
+ * and released after it is written, so that a slow stage holds back the ones before it
+ * @author ORION-CIRB
+ */
+public class PrefetchPipeline {
+
+    private final MemoryBudget budget;
+
+
+    /**
+     * Image going through the stages
+     */
+    private static class Task {
+        final String f;
+        RunManifest.Entry entry;
+        String previousRow;
+        int reserved;
+        ImagePipeline.LoadedImage loaded;
+        ImagePipeline.Analysis analysis;
+        Throwable error;
+
+        Task(String f) {
+            this.f = f;
+        }
+    }
+
+    // Marks the end of a queue
+    private static final Task END = new Task(null);
+
+
+    public PrefetchPipeline() {
+        this.budget = new MemoryBudget(0.8);
+    }
+
+
+    /**
+     * Analyze images with pipeline and write their results rows, in order
+     * Images unchanged in manifest (may be null) are skipped, manifest is updated after each image written
+     */
+    public void run(List<String> imageFiles, ImagePipeline pipeline, BufferedWriter results, RunManifest manifest) throws IOException {
+        BlockingQueue<Task> loaded = new ArrayBlockingQueue<>(1);
+        BlockingQueue<Task> analyzed = new ArrayBlockingQueue<>(1);
+        Thread decoder = new Thread(() -> decode(imageFiles, pipeline, manifest, loaded), "decoder");
+        Thread analyzer = new Thread(() -> analyze(pipeline, loaded, analyzed), "analyzer");
+        // Stages must not keep the JVM alive if writing fails
+        decoder.setDaemon(true);
+        analyzer.setDaemon(true);
+        decoder.start();
+        analyzer.start();
+        int nbSkipped = 0;
+        try {
+            Task task;
+            while ((task = analyzed.take()) != END) {
+                if (task.previousRow != null) {
+                    System.out.println(FilenameUtils.getBaseName(task.f) + " unchanged since last run, skipped");
+                    results.write(task.previousRow);
+                    results.flush();
+                    nbSkipped++;
+                    continue;
+                }
+                try {
+                    if (task.error != null) {
+                        Logger.getLogger(PrefetchPipeline.class.getName()).log(Level.SEVERE, "Analysis of "+FilenameUtils.getBaseName(task.f)+" failed", task.error);
+                        continue;
+                    }
+                    pipeline.write(task.analysis);
+                    String row = task.analysis.getRow();
+                    results.write(row);
+                    results.flush();
+                    if (task.entry != null && task.analysis.isComplete())
+                        manifest.put(task.entry, row, task.analysis.getOutputs());
+                    else if (task.entry != null)
+                        System.out.println("Outputs of " + FilenameUtils.getBaseName(task.f) + " not all written, it will be analyzed again");
+                } finally {
+                    budget.release(task.reserved);
+                }
+            }
+            if (nbSkipped > 0)
+                System.out.println(nbSkipped + " unchanged images skipped");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            Logger.getLogger(PrefetchPipeline.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            decoder.interrupt();
+            analyzer.interrupt();
+        }
+    }
+
+
+    /**
+     * Decoder stage: check manifest, wait for heap budget and read images
+     */
+    private void decode(List<String> imageFiles, ImagePipeline pipeline, RunManifest manifest, BlockingQueue<Task> loaded) {
+        try {
+            for (String f: imageFiles) {
+                Task task = new Task(f);
+                if (manifest != null) {
+                    try {
+                        task.entry = manifest.entry(f, pipeline.getRoiFile(f), pipeline.getParameters());
+                        task.previousRow = pipeline.getPreviousRow(manifest, task.entry);
+                    } catch (IOException ex) {
+                        Logger.getLogger(PrefetchPipeline.class.getName()).log(Level.WARNING, "Cannot fingerprint "+f, ex);
+                    }
+                }
+                if (task.previousRow == null) {
+                    ImagePipeline.LoadedImage img = null;
+                    try {
+                        img = pipeline.open(f);
+                        task.reserved = budget.acquire(img.getFootprint());
+                        task.loaded = pipeline.load(img);
+                    } catch (InterruptedException ex) {
+                        img.closeReader();
+                        throw ex;
+                    } catch (Throwable ex) {
+                        if (img != null)
+                            img.closeReader();
+                        task.error = ex;
+                    }
+                }
+                loaded.put(task);
+            }
+            loaded.put(END);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Analyzer stage: analyze images read by the decoder
+     */
+    private void analyze(ImagePipeline pipeline, BlockingQueue<Task> loaded, BlockingQueue<Task> analyzed) {
+        try {
+            Task task;
+            while ((task = loaded.take()) != END) {
+                if (task.loaded != null) {
+                    try {
+                        task.analysis = pipeline.analyze(task.loaded);
+                    } catch (Throwable ex) {
+                        task.error = ex;
+                    }
+                    task.loaded = null;
+                }
+                analyzed.put(task);
+            }
+            analyzed.put(END);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import java.util.List;
+import java.util.stream.IntStream;
+
+
+/**
+ * ROIs of an image rasterized once in a packed 2D bitmask
+ * The same mask is applied to every slice of the image
+ * @author ORION-CIRB
+ */
+public class RoiMask {
+
+    private final int width, height;
+    private final long[] bits;
+    private final long area;
+
+
+    public RoiMask(List<Roi> rois, int width, int height) {
+        this.width = width;
+        this.height = height;
+        bits = new long[(width*height + 63) >>> 6];
+        long count = 0;
+        if (!rois.isEmpty()) {
+            ByteProcessor mask = new ByteProcessor(width, height);
+            mask.setValue(1);
+            for (Roi r : rois)
+                mask.fill(r);
+            byte[] pixels = (byte[]) mask.getPixels();
+            for (int i = 0; i < pixels.length; i++)
+                if (pixels[i] != 0)
+                    bits[i >>> 6] |= 1L << i;
+            for (long w: bits)
+                count += Long.bitCount(w);
+        }
+        area = count;
+    }
+
+
+    public boolean isEmpty() {
+        return(area == 0);
+    }
+
+
+    /**
+     * Check if pixel i (x + y*width) is inside ROIs
+     */
+    public boolean contains(int i) {
+        return((bits[i >>> 6] & (1L << i)) != 0);
+    }
+
+
+    /**
+     * Number of pixels inside ROIs, overlapping ROIs are counted once
+     */
+    public long getArea() {
+        return(area);
+    }
+
+
+    /**
+     * Volume of ROIs through nSlices slices
+     */
+    public double getVolume(int nSlices, Parameters params) {
+        return(area * nSlices * params.pixVol);
+    }
+
+
+    /**
+     * Clear voxels inside ROIs in all slices of mask, in place
+     */
+    public void clear(Mask3D mask) {
+        if (isEmpty())
+            return;
+        if (mask instanceof BitMask3D) {
+            ((BitMask3D) mask).andNotPlane(bits);
+            return;
+        }
+        IntStream.range(0, mask.getDepth()).parallel().forEach(z -> {
+            for (int w = 0; w < bits.length; w++) {
+                long word = bits[w];
+                while (word != 0) {
+                    mask.set((w << 6) + Long.numberOfTrailingZeros(word), z, false);
+                    word &= word - 1;
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Set voxels inside ROIs to 0 in all slices of img, in place
+     * Only words of the mask with bits set are visited, slices are processed in parallel
+     */
+    public void clear(ImagePlus img) {
+        if (isEmpty())
+            return;
+        ImageStack stack = img.getStack();
+        IntStream.range(0, stack.getSize()).parallel().forEach(z -> {
+            Object pixels = stack.getPixels(z+1);
+            for (int w = 0; w < bits.length; w++) {
+                long word = bits[w];
+                while (word != 0) {
+                    int i = (w << 6) + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                    if (pixels instanceof byte[])
+                        ((byte[]) pixels)[i] = 0;
+                    else if (pixels instanceof short[])
+                        ((short[]) pixels)[i] = 0;
+                    else
+                        ((float[]) pixels)[i] = 0;
+                }
+            }
+        });
+    }
+
+}
@@ -0,0 +1,382 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+
+/**
+ * Population of labelled 3D objects stored as runs of consecutive voxels along x
+ * Runs of object k are runs offsets[k] to offsets[k+1]-1, in raster order, run r covering x in [starts[r], ends[r][
+ * of row rows[r] = z*height + y
+ * Volume, bounding box and mask intersection are computed per run, drawing fills whole runs at once
+ * @author ORION-CIRB
+ */
+public class RunLengthPopulation {
+
+    private final int width, height, depth;
+    private final int[] labels;
+    private final int[] offsets;
+    private final int[] rows, starts, ends;
+
+
+    private RunLengthPopulation(int width, int height, int depth, int[] labels, int[] offsets, int[] rows, int[] starts, int[] ends) {
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.labels = labels;
+        this.offsets = offsets;
+        this.rows = rows;
+        this.starts = starts;
+        this.ends = ends;
+    }
+
+
+    /**
+     * Population of labels given per slice, 0 for background
+     */
+    public static RunLengthPopulation fromLabels(int[][] labels, int width, int height) {
+        return(build(width, height, labels.length, z -> labels[z]));
+    }
+
+
+    /**
+     * Population of a label image, 8, 16 or 32-bit
+     */
+    public static RunLengthPopulation fromImage(ImagePlus img) {
+        ImageStack stack = img.getStack();
+        int size = img.getWidth()*img.getHeight();
+        return(build(img.getWidth(), img.getHeight(), stack.getSize(), z -> readLabels(stack.getPixels(z+1), new int[size])));
+    }
+
+
+    /**
+     * Read labels of 8, 16 or 32-bit slice pixels into lab
+     */
+    static int[] readLabels(Object pixels, int[] lab) {
+        if (pixels instanceof byte[]) {
+            byte[] p = (byte[]) pixels;
+            for (int i = 0; i < lab.length; i++)
+                lab[i] = p[i] & 0xff;
+        } else if (pixels instanceof short[]) {
+            short[] p = (short[]) pixels;
+            for (int i = 0; i < lab.length; i++)
+                lab[i] = p[i] & 0xffff;
+        } else {
+            float[] p = (float[]) pixels;
+            for (int i = 0; i < lab.length; i++)
+                lab[i] = (int) p[i];
+        }
+        return(lab);
+    }
+
+
+    /**
+     * Count runs of each label, then fill runs of each object in raster order
+     */
+    private static RunLengthPopulation build(int width, int height, int depth, IntFunction<int[]> slices) {
+        int[] nbRuns = new int[1024];
+        for (int z = 0; z < depth; z++) {
+            int[] lab = slices.apply(z);
+            for (int y = 0; y < height; y++) {
+                int x = 0, row = y*width;
+                while (x < width) {
+                    int l = lab[row + x++];
+                    if (l == 0)
+                        continue;
+                    while (x < width && lab[row + x] == l)
+                        x++;
+                    if (l >= nbRuns.length)
+                        nbRuns = Arrays.copyOf(nbRuns, Math.max(2*nbRuns.length, l+1));
+                    nbRuns[l]++;
+                }
+            }
+        }
+
+        // Objects are labels with at least one run, in increasing label order
+        int nbObjects = 0;
+        for (int n: nbRuns)
+            if (n > 0)
+                nbObjects++;
+        int[] labels = new int[nbObjects];
+        int[] offsets = new int[nbObjects+1];
+        int[] next = new int[nbRuns.length];
+        int k = 0, total = 0;
+        for (int l = 1; l < nbRuns.length; l++) {
+            if (nbRuns[l] == 0)
+                continue;
+            labels[k] = l;
+            offsets[k++] = total;
+            next[l] = total;
+            total += nbRuns[l];
+        }
+        offsets[nbObjects] = total;
+
+        int[] rows = new int[total], starts = new int[total], ends = new int[total];
+        for (int z = 0; z < depth; z++) {
+            int[] lab = slices.apply(z);
+            for (int y = 0; y < height; y++) {
+                int x = 0, row = y*width;
+                while (x < width) {
+                    int l = lab[row + x];
+                    if (l == 0) {
+                        x++;
+                        continue;
+                    }
+                    int r = next[l]++;
+                    starts[r] = x;
+                    while (x < width && lab[row + x] == l)
+                        x++;
+                    rows[r] = z*height + y;
+                    ends[r] = x;
+                }
+            }
+        }
+        return(new RunLengthPopulation(width, height, depth, labels, offsets, rows, starts, ends));
+    }
+
+
+    public int getWidth() {
+        return(width);
+    }
+
+
+    public int getHeight() {
+        return(height);
+    }
+
+
+    public int getDepth() {
+        return(depth);
+    }
+
+
+    public int getNbObjects() {
+        return(labels.length);
+    }
+
+
+    /**
+     * Label of object k
+     */
+    public int getLabel(int k) {
+        return(labels[k]);
+    }
+
+
+    public int getNbRuns() {
+        return(rows.length);
+    }
+
+
+    /**
+     * Number of voxels of object k
+     */
+    public long getNbVoxels(int k) {
+        long n = 0;
+        for (int r = offsets[k]; r < offsets[k+1]; r++)
+            n += ends[r] - starts[r];
+        return(n);
+    }
+
+
+    /**
+     * Number of voxels of all objects
+     */
+    public long getNbVoxels() {
+        long n = 0;
+        for (int r = 0; r < rows.length; r++)
+            n += ends[r] - starts[r];
+        return(n);
+    }
+
+
+    /**
+     * Volume of all objects, with voxel volume pixVol
+     */
+    public double getVolume(double pixVol) {
+        return(getNbVoxels() * pixVol);
+    }
+
+
+    /**
+     * Bounding box of object k as {xmin, xmax, ymin, ymax, zmin, zmax}, bounds included
+     */
+    public int[] getBoundingBox(int k) {
+        int[] box = {width, -1, height, -1, depth, -1};
+        for (int r = offsets[k]; r < offsets[k+1]; r++) {
+            int z = rows[r] / height, y = rows[r] % height;
+            box[0] = Math.min(box[0], starts[r]);
+            box[1] = Math.max(box[1], ends[r] - 1);
+            box[2] = Math.min(box[2], y);
+            box[3] = Math.max(box[3], y);
+            box[4] = Math.min(box[4], z);
+            box[5] = Math.max(box[5], z);
+        }
+        return(box);
+    }
+
+
+    /**
+     * Centroid of object k as {x, y, z}, in voxels
+     */
+    public double[] getCentroid(int k) {
+        double sx = 0, sy = 0, sz = 0;
+        long n = 0;
+        for (int r = offsets[k]; r < offsets[k+1]; r++) {
+            int len = ends[r] - starts[r];
+            sx += (starts[r] + ends[r] - 1) * 0.5 * len;
+            sy += (double) (rows[r] % height) * len;
+            sz += (double) (rows[r] / height) * len;
+            n += len;
+        }
+        return(new double[] {sx/n, sy/n, sz/n});
+    }
+
+
+    /**
+     * Voxel of object k with the lowest value, as {z, index in slice}, values being given per slice
+     */
+    public int[] getMinVoxel(int k, IntFunction<float[]> values) {
+        int[] min = {-1, -1};
+        float minValue = Float.POSITIVE_INFINITY;
+        for (int r = offsets[k]; r < offsets[k+1]; r++) {
+            int z = rows[r] / height, base = (rows[r] % height) * width;
+            float[] v = values.apply(z);
+            for (int i = base + starts[r]; i < base + ends[r]; i++) {
+                if (v[i] < minValue || min[0] < 0) {
+                    minValue = v[i];
+                    min[0] = z;
+                    min[1] = i;
+                }
+            }
+        }
+        return(min);
+    }
+
+
+    /**
+     * Number of voxels of object k set in mask
+     */
+    public long getNbVoxelsIn(int k, Mask3D mask) {
+        long n = 0;
+        for (int r = offsets[k]; r < offsets[k+1]; r++) {
+            int z = rows[r] / height, base = (rows[r] % height) * width;
+            n += mask.cardinality(z, base + starts[r], base + ends[r]);
+        }
+        return(n);
+    }
+
+
+    /**
+     * Split objects into their parts set in mask and their parts not set in it, parts keep the label of their object
+     * Return {in, out} populations, an object with no voxel on one side is not in the population of this side
+     */
+    public RunLengthPopulation[] split(Mask3D mask) {
+        Builder in = new Builder(rows.length/2), out = new Builder(rows.length/2);
+        for (int k = 0; k < labels.length; k++) {
+            for (int r = offsets[k]; r < offsets[k+1]; r++) {
+                int z = rows[r] / height, base = (rows[r] % height) * width;
+                int i = base + starts[r], end = base + ends[r];
+                while (i < end) {
+                    boolean isIn = mask.get(i, z);
+                    int j = isIn ? mask.nextClear(z, i, end) : mask.nextSet(z, i, end);
+                    (isIn ? in : out).add(rows[r], i - base, j - base);
+                    i = j;
+                }
+            }
+            in.endObject(labels[k]);
+            out.endObject(labels[k]);
+        }
+        return(new RunLengthPopulation[] {in.build(), out.build()});
+    }
+
+
+    /**
+     * Set voxels of all objects in mask
+     */
+    public void draw(Mask3D mask) {
+        for (int r = 0; r < rows.length; r++) {
+            int z = rows[r] / height, base = (rows[r] % height) * width;
+            mask.setRange(z, base + starts[r], base + ends[r]);
+        }
+    }
+
+
+    /**
+     * Runs of each slice, as {label, index of first voxel in slice, index after last voxel} triplets
+     */
+    int[][] getSliceRuns() {
+        int[] nb = new int[depth];
+        for (int r = 0; r < rows.length; r++)
+            nb[rows[r] / height]++;
+        int[][] runs = new int[depth][];
+        for (int z = 0; z < depth; z++)
+            runs[z] = new int[3*nb[z]];
+        Arrays.fill(nb, 0);
+        for (int k = 0; k < labels.length; k++) {
+            for (int r = offsets[k]; r < offsets[k+1]; r++) {
+                int z = rows[r] / height, base = (rows[r] % height) * width;
+                int[] run = runs[z];
+                run[nb[z]++] = labels[k];
+                run[nb[z]++] = base + starts[r];
+                run[nb[z]++] = base + ends[r];
+            }
+        }
+        return(runs);
+    }
+
+
+    /**
+     * Runs of a population added object by object
+     */
+    private class Builder {
+
+        private int[] labels = new int[16];
+        private int[] offsets = new int[17];
+        private int[] rows, starts, ends;
+        private int nbObjects = 0, nbRuns = 0;
+
+
+        Builder(int capacity) {
+            rows = new int[Math.max(16, capacity)];
+            starts = new int[rows.length];
+            ends = new int[rows.length];
+        }
+
+
+        void add(int row, int start, int end) {
+            if (nbRuns == rows.length) {
+                rows = Arrays.copyOf(rows, 2*nbRuns);
+                starts = Arrays.copyOf(starts, 2*nbRuns);
+                ends = Arrays.copyOf(ends, 2*nbRuns);
+            }
+            rows[nbRuns] = row;
+            starts[nbRuns] = start;
+            ends[nbRuns++] = end;
+        }
+
+
+        /**
+         * Close object of label made of runs added since last call, dropped if it has no run
+         */
+        void endObject(int label) {
+            if (nbRuns == offsets[nbObjects])
+                return;
+            if (nbObjects == labels.length) {
+                labels = Arrays.copyOf(labels, 2*nbObjects);
+                offsets = Arrays.copyOf(offsets, 2*nbObjects + 1);
+            }
+            labels[nbObjects++] = label;
+            offsets[nbObjects] = nbRuns;
+        }
+
+
+        RunLengthPopulation build() {
+            return(new RunLengthPopulation(width, height, depth, Arrays.copyOf(labels, nbObjects), Arrays.copyOf(offsets, nbObjects+1),
+                    Arrays.copyOf(rows, nbRuns), Arrays.copyOf(starts, nbRuns), Arrays.copyOf(ends, nbRuns)));
+        }
+    }
+
+}
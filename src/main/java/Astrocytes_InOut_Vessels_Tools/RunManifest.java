@@ -0,0 +1,149 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import org.apache.commons.io.FilenameUtils;
+
+
+/**
+ * Manifest of a run, kept in the results folder
+ * Records for each image analyzed the fingerprints of the image and of its ROIs file, the parameters, the outputs written
+ * and the results row, so that a later run with the same parameters can skip unchanged images and reuse their rows
+ * One line per image: name, image fingerprint, ROIs fingerprint, parameters, "outputs=" and the comma-separated kinds
+ * of outputs, and results row, separated with tabs; lines without outputs (older manifests) are ignored
+ * Images are recorded only once all their outputs are written
+ * @author ORION-CIRB
+ */
+public class RunManifest {
+
+    // Parameters which do not change results
+    private static final String[] RUN_OPTIONS = {"parallelImages", "cacheSizeMB", "slabSlices", "spillDir", "writeReports"};
+
+    private static final String OUTPUTS = "outputs=";
+
+    private final File file;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+
+    /**
+     * Inputs of the analysis of an image
+     */
+    public static class Entry {
+        final String name, imageFingerprint, roiFingerprint, params;
+        String outputs = "";
+        String row;
+
+        Entry(String name, String imageFingerprint, String roiFingerprint, String params) {
+            this.name = name;
+            this.imageFingerprint = imageFingerprint;
+            this.roiFingerprint = roiFingerprint;
+            this.params = params;
+        }
+
+        boolean sameInputs(Entry e) {
+            return(imageFingerprint.equals(e.imageFingerprint) && roiFingerprint.equals(e.roiFingerprint) && params.equals(e.params));
+        }
+    }
+
+
+    /**
+     * Load manifest file if it exists
+     */
+    public RunManifest(File file) throws IOException {
+        this.file = file;
+        if (!file.exists())
+            return;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 6);
+                if (fields.length < 6 || !fields[4].startsWith(OUTPUTS))
+                    continue;
+                Entry e = new Entry(fields[0], fields[1], fields[2], fields[3]);
+                e.outputs = fields[4].substring(OUTPUTS.length());
+                e.row = fields[5];
+                entries.put(e.name, e);
+            }
+        }
+    }
+
+
+    /**
+     * Entry with the current inputs of image f
+     */
+    public Entry entry(String f, String roiFile, Parameters params) throws IOException {
+        return(new Entry(FilenameUtils.getBaseName(f), FileFingerprint.of(f), FileFingerprint.of(roiFile), paramsKey(params)));
+    }
+
+
+    /**
+     * Results row recorded for entry, null if image was not analyzed yet with the same inputs
+     */
+    public synchronized String getRow(Entry e) {
+        Entry old = entries.get(e.name);
+        return((old != null && old.sameInputs(e)) ? old.row + "\n" : null);
+    }
+
+
+    /**
+     * Kinds of outputs recorded for entry, empty if image was not analyzed yet with the same inputs
+     */
+    public synchronized List<String> getOutputs(Entry e) {
+        Entry old = entries.get(e.name);
+        if (old == null || !old.sameInputs(e) || old.outputs.isEmpty())
+            return(Collections.emptyList());
+        return(Arrays.asList(old.outputs.split(",")));
+    }
+
+
+    /**
+     * Record results row and kinds of outputs of entry and rewrite manifest file
+     */
+    public synchronized void put(Entry e, String row, List<String> outputs) throws IOException {
+        e.outputs = String.join(",", outputs);
+        e.row = row.endsWith("\n") ? row.substring(0, row.length()-1) : row;
+        entries.put(e.name, e);
+        save();
+    }
+
+
+    /**
+     * Write manifest in a temporary file then move it, so that an interrupted run never leaves a truncated manifest
+     */
+    private void save() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(tmp, false))) {
+            for (Entry e: entries.values())
+                writer.write(e.name+"\t"+e.imageFingerprint+"\t"+e.roiFingerprint+"\t"+e.params+"\t"+OUTPUTS+e.outputs+"\t"+e.row+"\n");
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+
+    /**
+     * Parameters which change results, as sorted key=value pairs
+     */
+    private static String paramsKey(Parameters params) {
+        Properties props = params.toProperties();
+        for (String key: RUN_OPTIONS)
+            props.remove(key);
+        StringBuilder sb = new StringBuilder();
+        for (String key: new TreeSet<>(props.stringPropertyNames()))
+            sb.append(key).append('=').append(props.getProperty(key)).append(';');
+        return(sb.toString());
+    }
+
+}
@@ -0,0 +1,115 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Temporary file holding the slices of a stack that does not fit in the heap
+ * Slices have a fixed size and are read and written at any position, from any thread
+ * The file is deleted when the spill is closed
+ * @author ORION-CIRB
+ */
+public class SliceSpill implements Closeable {
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final int sliceSize;
+    private final int bytesPerVoxel;
+
+
+    /**
+     * Spill of slices of sliceSize voxels of bytesPerVoxel bytes (1 for byte, 4 for int and float), in directory dir
+     */
+    public SliceSpill(File dir, String name, int sliceSize, int bytesPerVoxel) throws IOException {
+        this.file = File.createTempFile("spill_" + name, ".raw", dir);
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        this.sliceSize = sliceSize;
+        this.bytesPerVoxel = bytesPerVoxel;
+    }
+
+
+    private ByteBuffer newBuffer() {
+        return(ByteBuffer.allocate(sliceSize * bytesPerVoxel).order(ByteOrder.nativeOrder()));
+    }
+
+
+    private void write(int z, ByteBuffer buf) throws IOException {
+        buf.rewind();
+        long pos = (long) z * sliceSize * bytesPerVoxel;
+        while (buf.hasRemaining())
+            pos += channel.write(buf, pos);
+    }
+
+
+    private ByteBuffer read(int z) throws IOException {
+        ByteBuffer buf = newBuffer();
+        long pos = (long) z * sliceSize * bytesPerVoxel;
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, pos);
+            if (n < 0)
+                throw new IOException("Slice " + z + " not written in " + file);
+            pos += n;
+        }
+        buf.rewind();
+        return(buf);
+    }
+
+
+    public void writeBytes(int z, byte[] pixels) throws IOException {
+        ByteBuffer buf = newBuffer();
+        buf.put(pixels);
+        write(z, buf);
+    }
+
+
+    public void writeInts(int z, int[] pixels) throws IOException {
+        ByteBuffer buf = newBuffer();
+        buf.asIntBuffer().put(pixels);
+        write(z, buf);
+    }
+
+
+    public void writeFloats(int z, float[] pixels) throws IOException {
+        ByteBuffer buf = newBuffer();
+        buf.asFloatBuffer().put(pixels);
+        write(z, buf);
+    }
+
+
+    public byte[] readBytes(int z) throws IOException {
+        byte[] pixels = new byte[sliceSize];
+        read(z).get(pixels);
+        return(pixels);
+    }
+
+
+    public int[] readInts(int z) throws IOException {
+        int[] pixels = new int[sliceSize];
+        read(z).asIntBuffer().get(pixels);
+        return(pixels);
+    }
+
+
+    public float[] readFloats(int z) throws IOException {
+        float[] pixels = new float[sliceSize];
+        read(z).asFloatBuffer().get(pixels);
+        return(pixels);
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        raf.close();
+        file.delete();
+    }
+
+}
@@ -0,0 +1,197 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+
+/**
+ * Content-addressed on-disk cache of the outputs of an analysis stage
+ * An entry holds the stacks computed by a stage, keyed by a hash of everything the stage depends on
+ * (input files fingerprints and stage parameters), so that any change of these inputs gives a new entry
+ * Stacks are stored raw and deflate-compressed, which suits label images, mostly made of 0
+ * Total size is capped, least recently used entries are evicted first
+ * @author ORION-CIRB
+ */
+public class StageCache {
+
+    private static final int MAGIC = 0x41495643;
+    private static final int VERSION = 1;
+
+    private final File dir;
+    private final long maxBytes;
+
+
+    public StageCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        dir.mkdirs();
+    }
+
+
+    /**
+     * Hash of the inputs of a stage, to be used as key
+     */
+    public static String key(String stage, String... inputs) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            for (String input: inputs)
+                md.update((input + "\n").getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(stage + "-");
+            for (byte b: md.digest())
+                sb.append(String.format("%02x", b));
+            return(sb.toString());
+        } catch (NoSuchAlgorithmException | IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+
+    private File entryFile(String key) {
+        return(new File(dir, key + ".bin"));
+    }
+
+
+    /**
+     * Load stacks of entry key with calibration cal, null if not in cache or unreadable
+     */
+    public ImagePlus[] load(String key, Calibration cal) {
+        File file = entryFile(key);
+        if (!file.exists())
+            return(null);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(new FileInputStream(file)), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                return(null);
+            ImagePlus[] imgs = new ImagePlus[in.readInt()];
+            for (int n = 0; n < imgs.length; n++) {
+                imgs[n] = readStack(in, key + "-" + n);
+                imgs[n].setCalibration(cal);
+            }
+            // Mark entry as recently used
+            file.setLastModified(System.currentTimeMillis());
+            return(imgs);
+        } catch (IOException ex) {
+            Logger.getLogger(StageCache.class.getName()).log(Level.WARNING, "Cannot read cache entry "+file, ex);
+            file.delete();
+            return(null);
+        }
+    }
+
+
+    /**
+     * Store stacks of imgs as entry key, then evict old entries if cache is over its size
+     */
+    public synchronized void save(String key, ImagePlus... imgs) {
+        File file = entryFile(key);
+        File tmp = new File(dir, key + ".tmp" + Thread.currentThread().getId());
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new DeflaterOutputStream(new FileOutputStream(tmp), new Deflater(Deflater.BEST_SPEED)), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(imgs.length);
+                for (ImagePlus img: imgs)
+                    writeStack(out, img.getStack());
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            Logger.getLogger(StageCache.class.getName()).log(Level.WARNING, "Cannot write cache entry "+file, ex);
+            tmp.delete();
+            return;
+        }
+        evict();
+    }
+
+
+    /**
+     * Delete least recently used entries until cache fits in maxBytes
+     */
+    private void evict() {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".bin"));
+        if (files == null)
+            return;
+        long total = 0;
+        for (File f: files)
+            total += f.length();
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (int i = 0; i < files.length && total > maxBytes; i++) {
+            total -= files[i].length();
+            files[i].delete();
+        }
+    }
+
+
+    private static void writeStack(DataOutputStream out, ImageStack stack) throws IOException {
+        int bitDepth = stack.getBitDepth();
+        out.writeInt(bitDepth);
+        out.writeInt(stack.getWidth());
+        out.writeInt(stack.getHeight());
+        out.writeInt(stack.getSize());
+        int size = stack.getWidth() * stack.getHeight();
+        ByteBuffer buf = ByteBuffer.allocate(size * bitDepth / 8);
+        for (int z = 1; z <= stack.getSize(); z++) {
+            buf.clear();
+            Object pixels = stack.getPixels(z);
+            if (bitDepth == 8)
+                buf.put((byte[]) pixels);
+            else if (bitDepth == 16)
+                buf.asShortBuffer().put((short[]) pixels);
+            else
+                buf.asFloatBuffer().put((float[]) pixels);
+            out.write(buf.array());
+        }
+    }
+
+
+    private static ImagePlus readStack(DataInputStream in, String title) throws IOException {
+        int bitDepth = in.readInt();
+        int width = in.readInt(), height = in.readInt(), depth = in.readInt();
+        if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32)
+            throw new IOException("Unsupported bit depth " + bitDepth);
+        int size = width * height;
+        byte[] bytes = new byte[size * bitDepth / 8];
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) {
+            in.readFully(bytes);
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            if (bitDepth == 8) {
+                stack.addSlice(new ByteProcessor(width, height, bytes.clone()));
+            } else if (bitDepth == 16) {
+                short[] pixels = new short[size];
+                buf.asShortBuffer().get(pixels);
+                stack.addSlice(new ShortProcessor(width, height, pixels, null));
+            } else {
+                float[] pixels = new float[size];
+                buf.asFloatBuffer().get(pixels);
+                stack.addSlice(new FloatProcessor(width, height, pixels));
+            }
+        }
+        ImagePlus img = new ImagePlus(title, stack);
+        img.setDimensions(1, depth, 1);
+        return(img);
+    }
+
+}
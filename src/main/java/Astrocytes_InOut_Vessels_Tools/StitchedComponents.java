@@ -0,0 +1,110 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import java.util.Arrays;
+
+
+/**
+ * 26-connected components of a stack labelled slab by slab
+ * Each slab is labelled on its own with ConnectedComponents, without size filtering, then its labels are offset
+ * to be unique in the stack and linked to the labels of the last slice of the previous slab
+ * Once all slabs are added, components are sized and filtered on their whole volume
+ * @author ORION-CIRB
+ */
+public class StitchedComponents {
+
+    private final int width, height;
+    private int[] parent = new int[1024];
+    private long[] count = new long[1024];
+    private int total = 0;
+    private int[] lastSlice = null;
+    private boolean[] kept;
+    private int nbDetected, nbKept;
+    private long keptVoxels;
+
+
+    public StitchedComponents(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+
+    /**
+     * Add labels of next slab, given per slice, with voxel counts of its labels
+     * Labels are offset in place to become stack-wide labels
+     */
+    public void addSlab(int[][] labels, long[] voxelCounts) {
+        int offset = total;
+        total += voxelCounts.length;
+        if (total >= parent.length) {
+            int size = Math.max(2*parent.length, total + 1);
+            parent = Arrays.copyOf(parent, size);
+            count = Arrays.copyOf(count, size);
+        }
+        for (int l = 1; l <= voxelCounts.length; l++) {
+            parent[l + offset] = l + offset;
+            count[l + offset] = voxelCounts[l-1];
+        }
+        for (int[] lab: labels)
+            for (int i = 0; i < lab.length; i++)
+                if (lab[i] != 0)
+                    lab[i] += offset;
+        if (lastSlice != null && labels.length > 0)
+            ConnectedComponents.linkSlices(parent, labels[0], 0, lastSlice, 0, width, height);
+        if (labels.length > 0)
+            lastSlice = labels[labels.length-1];
+    }
+
+
+    /**
+     * Size components on the whole stack and keep those with a volume in [minVol, maxVol]
+     */
+    public void filter(double minVol, double maxVol, double pixVol) {
+        long[] size = new long[total + 1];
+        for (int l = 1; l <= total; l++)
+            size[ConnectedComponents.find(parent, l)] += count[l];
+        kept = new boolean[total + 1];
+        nbDetected = nbKept = 0;
+        keptVoxels = 0;
+        for (int l = 1; l <= total; l++) {
+            if (parent[l] != l)
+                continue;
+            nbDetected++;
+            double vol = size[l] * pixVol;
+            if (vol >= minVol && vol <= maxVol) {
+                kept[l] = true;
+                nbKept++;
+                keptVoxels += size[l];
+            }
+        }
+        for (int l = 1; l <= total; l++)
+            kept[l] = kept[ConnectedComponents.find(parent, l)];
+        lastSlice = null;
+    }
+
+
+    /**
+     * Check if stack-wide label l belongs to a kept component
+     */
+    public boolean isKept(int l) {
+        return(l != 0 && kept[l]);
+    }
+
+
+    public int getNbDetected() {
+        return(nbDetected);
+    }
+
+
+    public int getNbKept() {
+        return(nbKept);
+    }
+
+
+    /**
+     * Number of voxels of all kept components
+     */
+    public long getKeptVoxels() {
+        return(keptVoxels);
+    }
+
+}
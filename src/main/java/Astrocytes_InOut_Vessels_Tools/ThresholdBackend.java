@@ -0,0 +1,50 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import ij.ImagePlus;
+
+
+/**
+ * Automatic thresholding of a stack with one of the AutoThresholder methods
+ * Stack histogram has 256 bins between stack min and max, returned image is 1 at or above threshold and 0 elsewhere
+ * Backends follow CLIJ2 automaticThreshold conventions, ThresholdParity compares them for all methods
+ * @author ORION-CIRB
+ */
+public interface ThresholdBackend {
+
+    ImagePlus threshold(ImagePlus img, String method);
+
+
+    /**
+     * Threshold img into a bit-packed mask
+     */
+    default Mask3D thresholdMask(ImagePlus img, String method) {
+        ImagePlus imgBin = threshold(img, method);
+        Mask3D mask = BitMask3D.fromStack(imgBin.getStack());
+        imgBin.flush();
+        return(mask);
+    }
+
+    String getName();
+
+
+    /**
+     * Return backend by name: "clij", "cpu" or "auto"
+     * "auto" uses CLIJ2 if it is installed and runs on a GPU, and the CPU otherwise
+     */
+    static ThresholdBackend create(String name) {
+        if (name.equals("cpu"))
+            return(new CpuThreshold());
+        try {
+            ClijThreshold clij = new ClijThreshold();
+            if (name.equals("clij") || clij.isOnGPU())
+                return(clij);
+            System.out.println("CLIJ2 runs on " + clij.getDeviceName() + ", thresholding on CPU");
+        } catch (Exception | LinkageError ex) {
+            if (name.equals("clij"))
+                throw new IllegalStateException("CLIJ2 not available", ex);
+            System.out.println("CLIJ2 not available (" + ex + "), thresholding on CPU");
+        }
+        return(new CpuThreshold());
+    }
+
+}
@@ -0,0 +1,306 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+
+/**
+ * Streaming writer of a little-endian TIFF of 8-bit images of the same size, one strip per image
+ * Each image is compressed as it comes (PackBits or Deflate), then written with its IFD just before it,
+ * so that the file is written sequentially through a buffered channel, without going back
+ * Uncompressed images have a known size: all IFDs are written first, then images one after the other
+ * Description (e.g. ImageJ hyperstack description), resolution and color map (for palette images) are written once
+ * after the header and shared by all IFDs, so that IFDs all have the same size and uncompressed images are evenly spaced
+ * File is written under a temporary name and renamed when the writer is closed
+ * @author ORION-CIRB
+ */
+public class TiffWriter implements Closeable {
+
+    public static final String[] COMPRESSIONS = {"none", "packbits", "deflate"};
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final long MAX_OFFSET = 0xFFFFFFFFL;
+
+    private final File file, tmp;
+    private final int width, height, nbImages;
+    private final int compression;
+    private final byte[] description;
+    private final byte[][] colorMap;
+    private final int nbEntries;
+    private final long descOffset, resOffset, mapOffset;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final Deflater deflater;
+    private byte[] packed = new byte[0];
+    private long position = 0;
+    private int nbWritten = 0;
+
+
+    /**
+     * TIFF of nbImages images of width x height, with compression among COMPRESSIONS, description (may be null),
+     * color map of 3 x 256 entries (may be null) and pixel width in µm
+     */
+    public TiffWriter(File file, int width, int height, int nbImages, String compression, String description, byte[][] colorMap,
+            double pixelWidth) throws IOException {
+        this.file = file;
+        this.tmp = new File(file.getPath() + ".tmp");
+        this.width = width;
+        this.height = height;
+        this.nbImages = nbImages;
+        switch (compression) {
+            case "packbits" :
+                this.compression = 32773;
+                break;
+            case "deflate" :
+                this.compression = 8;
+                break;
+            default :
+                this.compression = 1;
+        }
+        this.deflater = (this.compression == 8) ? new Deflater(Deflater.BEST_SPEED) : null;
+        this.description = (description == null) ? null : (description + "\0").getBytes(StandardCharsets.ISO_8859_1);
+        this.colorMap = colorMap;
+        this.nbEntries = 13 + ((this.description != null) ? 1 : 0) + ((colorMap != null) ? 1 : 0);
+        this.channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        // Header, then shared values, then first IFD
+        resOffset = 8;
+        descOffset = resOffset + 8;
+        mapOffset = descOffset + ((this.description != null) ? even(this.description.length) : 0);
+        long firstIfd = mapOffset + ((colorMap != null) ? 2 * 3 * 256 : 0);
+        buffer.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt((int) firstIfd);
+        position = 8;
+
+        // Resolution in pixels per µm, 1000000 / (pixel width in pm)
+        putInt(1000000);
+        putInt(Math.max(1, Math.min(MAX_OFFSET, Math.round(pixelWidth * 1e6))));
+        if (this.description != null) {
+            put(this.description, this.description.length);
+            if (this.description.length % 2 != 0)
+                put(new byte[1], 1);
+        }
+        if (colorMap != null) {
+            for (byte[] component: colorMap)
+                for (int v = 0; v < 256; v++)
+                    putShort((component[v] & 0xff) * 257);
+        }
+        if (this.compression == 1)
+            putUncompressedIfds();
+    }
+
+
+    /**
+     * Append next image, width x height pixels
+     */
+    public void writeImage(byte[] pixels) throws IOException {
+        if (nbWritten == nbImages)
+            throw new IOException("More than " + nbImages + " images written in " + file);
+        if (compression == 1) {
+            put(pixels, pixels.length);
+            nbWritten++;
+            return;
+        }
+        int length = compress(pixels);
+
+        // IFD: entries and next IFD offset, then strip
+        long strip = position + getIfdSize();
+        long next = (nbWritten + 1 < nbImages) ? strip + even(length) : 0;
+        if (strip + length > MAX_OFFSET)
+            throw new IOException("TIFF " + file + " larger than 4 GB, use compression or downsampling");
+        putIfd(strip, length, next);
+        put(packed, length);
+        if (length % 2 != 0)
+            put(new byte[1], 1);
+        nbWritten++;
+    }
+
+
+    /**
+     * IFDs of all uncompressed images, their strips follow one after the other as ImageJ expects
+     */
+    private void putUncompressedIfds() throws IOException {
+        long size = (long) width * height;
+        long strip = position + nbImages * getIfdSize();
+        if (strip + nbImages * size > MAX_OFFSET)
+            throw new IOException("TIFF " + file + " larger than 4 GB, use compression or downsampling");
+        for (int n = 0; n < nbImages; n++) {
+            long next = (n + 1 < nbImages) ? position + getIfdSize() : 0;
+            putIfd(strip + n * size, size, next);
+        }
+    }
+
+
+    private long getIfdSize() {
+        return(2 + 12L * nbEntries + 4);
+    }
+
+
+    private void putIfd(long strip, long length, long next) throws IOException {
+        putShort(nbEntries);
+        putEntry(254, 4, 1, 0);
+        putEntry(256, 4, 1, width);
+        putEntry(257, 4, 1, height);
+        putEntry(258, 3, 1, 8);
+        putEntry(259, 3, 1, compression);
+        putEntry(262, 3, 1, (colorMap != null) ? 3 : 1);
+        if (description != null)
+            putEntry(270, 2, description.length, descOffset);
+        putEntry(273, 4, 1, strip);
+        putEntry(277, 3, 1, 1);
+        putEntry(278, 4, 1, height);
+        putEntry(279, 4, 1, length);
+        putEntry(282, 5, 1, resOffset);
+        putEntry(283, 5, 1, resOffset);
+        putEntry(296, 3, 1, 1);
+        if (colorMap != null)
+            putEntry(320, 3, 3 * 256, mapOffset);
+        putInt(next);
+    }
+
+
+    /**
+     * Compress pixels into packed buffer, return compressed length
+     */
+    private int compress(byte[] pixels) {
+        switch (compression) {
+            case 32773 :
+                return(packBits(pixels));
+            case 8 :
+                deflater.reset();
+                deflater.setInput(pixels);
+                deflater.finish();
+                int length = 0;
+                while (!deflater.finished()) {
+                    if (length == packed.length)
+                        packed = Arrays.copyOf(packed, Math.max(pixels.length / 4, 2 * packed.length) + 64);
+                    length += deflater.deflate(packed, length, packed.length - length);
+                }
+                return(length);
+            default :
+                return(pixels.length);
+        }
+    }
+
+
+    /**
+     * PackBits encoding of each row of pixels into packed buffer, return encoded length
+     */
+    private int packBits(byte[] pixels) {
+        // Never more than one header byte per byte
+        int max = 2 * pixels.length;
+        if (packed.length < max)
+            packed = new byte[max];
+        int n = 0;
+        for (int row = 0; row < height; row++) {
+            int i = row * width, end = i + width;
+            while (i < end) {
+                // Run of at least 3 equal bytes
+                int run = 1;
+                while (i + run < end && run < 128 && pixels[i + run] == pixels[i])
+                    run++;
+                if (run > 2) {
+                    packed[n++] = (byte) (1 - run);
+                    packed[n++] = pixels[i];
+                    i += run;
+                    continue;
+                }
+                // Literal bytes, up to next run of 3 equal bytes
+                int start = i;
+                while (i < end && i - start < 128 && !(i + 2 < end && pixels[i] == pixels[i + 1] && pixels[i] == pixels[i + 2]))
+                    i++;
+                if (i == start)
+                    i++;
+                packed[n++] = (byte) (i - start - 1);
+                System.arraycopy(pixels, start, packed, n, i - start);
+                n += i - start;
+            }
+        }
+        return(n);
+    }
+
+
+    private static long even(long length) {
+        return(length + (length % 2));
+    }
+
+
+    private void putEntry(int tag, int type, long count, long value) throws IOException {
+        putShort(tag);
+        putShort(type);
+        putInt(count);
+        if (type == 3 && count == 1) {
+            putShort((int) value);
+            putShort(0);
+        } else {
+            putInt(value);
+        }
+    }
+
+
+    private void putShort(int v) throws IOException {
+        if (buffer.remaining() < 2)
+            flush();
+        buffer.putShort((short) v);
+        position += 2;
+    }
+
+
+    private void putInt(long v) throws IOException {
+        if (buffer.remaining() < 4)
+            flush();
+        buffer.putInt((int) v);
+        position += 4;
+    }
+
+
+    private void put(byte[] bytes, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            if (!buffer.hasRemaining())
+                flush();
+            int n = Math.min(length - offset, buffer.remaining());
+            buffer.put(bytes, offset, n);
+            offset += n;
+        }
+        position += length;
+    }
+
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+
+    /**
+     * Flush and close file, renamed to its final name if all images were written
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+            if (deflater != null)
+                deflater.end();
+        }
+        if (nbWritten != nbImages) {
+            Files.deleteIfExists(tmp.toPath());
+            throw new IOException("Only " + nbWritten + " of " + nbImages + " images written in " + file);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+}
@@ -3,29 +3,33 @@ package Astrocytes_InOut_Vessels_Tools;
 import fiji.util.gui.GenericDialogPlus;
 import ij.IJ;
 import ij.ImagePlus;
-import ij.gui.PolygonRoi;
-import ij.measure.ResultsTable;
-import ij.plugin.filter.Analyzer;
+import ij.ImageStack;
 import ij.gui.Roi;
-import ij.io.FileSaver;
+import ij.io.RoiDecoder;
 import ij.measure.Calibration;
-import ij.plugin.Duplicator;
-import ij.plugin.ImageCalculator;
-import ij.plugin.RGBStackMerge;
 import ij.process.AutoThresholder;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
 import java.awt.Color;
 import java.awt.Font;
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Properties;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 import javax.swing.ImageIcon;
+import loci.common.services.DependencyException;
 import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
 import loci.formats.FormatException;
 import loci.formats.meta.IMetadata;
+import loci.formats.services.OMEXMLService;
 import loci.plugins.util.ImageProcessorReader;
 import mcib3d.geom2.BoundingBox;
 import mcib3d.geom2.Object3DComputation;
@@ -35,10 +39,6 @@ import mcib3d.geom2.Objects3DIntPopulation;
 import mcib3d.geom2.VoxelInt;
 import mcib3d.geom2.measurements.MeasureVolume;
 import mcib3d.image3d.ImageHandler;
-import mcib3d.image3d.ImageInt;
-import mcib3d.image3d.ImageLabeller;
-import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
-import net.haesleinhuepf.clij2.CLIJ2;
 import org.apache.commons.io.FilenameUtils;
 
 
@@ -50,25 +50,33 @@ public class Tools {
     
     private final ImageIcon icon = new ImageIcon(this.getClass().getResource("/Orion_icon.png"));
     private final String urlHelp = "https://github.com/orion-cirb/Astrocytes_InOut_Vessels.git";
-    private CLIJ2 clij2 = CLIJ2.getInstance();
+    private ThresholdBackend thBackend = null;
+    private final LaplacianOfGaussian vesselLoG = new LaplacianOfGaussian(14);
+    private final MedianFilter microMedian = new MedianFilter(8);
+    private final MedianFilter astroMedian = new MedianFilter(2);
     
     private String[] channelNames = {"Vessels", "Microglia", "Astrocytes"};
-    private Calibration cal;
-    private double pixVol;
+    private String[] dilationModes = {"objects", "distance"};
+    private String[] thBackends = {"auto", "clij", "cpu"};
     
-    // Microglia
-    private String microThMethod = "Moments";
-
-    // Vessels
-    private String vesselThMethod = "Triangle";
-    private double minVesselVol = 100;
-    private int dilVessel = 2;
-    
-    // Astrocytes
-    public String astroThMethod = "Li";
-    private double minAstroVol = 0.2;
+    private final MeasurementEngine measurements = new MeasurementEngine();
+    public final String resultsHeader = measurements.getHeader();
+    private Instrumentation instr = Instrumentation.DISABLED;
 
     
+    /**
+     * Record filtering, thresholding and labelling stages of images in instr
+     */
+    public void setInstrumentation(Instrumentation instr) {
+        this.instr = instr;
+    }
+    
+    
+    public Instrumentation getInstrumentation() {
+        return(instr);
+    }
+    
+    
     /**
      * Display a message in the ImageJ console and status bar
      */
@@ -86,8 +94,7 @@ public class Tools {
         try {
             loader.loadClass("net.haesleinhuepf.clij2.CLIJ2");
         } catch (ClassNotFoundException e) {
-            IJ.showMessage("Error", "CLIJ not installed, please install from update site");
-            return false;
+            print("CLIJ not installed, thresholding will run on CPU");
         }
         try {
             loader.loadClass("mcib3d.geom2.Object3DInt");
@@ -163,8 +170,8 @@ public class Tools {
     /**
      * Find image calibration
      */
-    public void findImageCalib(IMetadata meta) {
-        cal = new Calibration();
+    public Calibration findImageCalib(IMetadata meta) {
+        Calibration cal = new Calibration();
         cal.pixelWidth = meta.getPixelsPhysicalSizeX(0).value().doubleValue();
         cal.pixelHeight = cal.pixelWidth;
         if (meta.getPixelsPhysicalSizeZ(0) != null)
@@ -173,6 +180,7 @@ public class Tools {
             cal.pixelDepth = 1;
         cal.setUnit("microns");
         System.out.println("XY calibration = " + cal.pixelWidth + ", Z calibration = " + cal.pixelDepth);
+        return(cal);
     }
     
     
@@ -245,7 +253,8 @@ public class Tools {
     /**
      * Generate dialog box
      */
-    public String[] dialog(String[] chs) { 
+    public Parameters dialog(String[] chs, Calibration cal) { 
+        Parameters defaults = new Parameters(new Properties());
         GenericDialogPlus gd = new GenericDialogPlus("Parameters");
         gd.setInsets​(0, 100, 0);
         gd.addImage(icon);
@@ -259,42 +268,131 @@ public class Tools {
         
         String[] thMethods = AutoThresholder.getMethods();
         gd.addMessage("Vessels detection", Font.getFont("Monospace"), Color.blue);
-        gd.addChoice("Threshold method: ",thMethods, vesselThMethod);
-        gd.addNumericField("Min vessel volume (µm3): ", minVesselVol);
-        gd.addNumericField("Vessel dilation (µm): ", dilVessel);
+        gd.addChoice("Threshold method: ",thMethods, defaults.vesselThMethod);
+        gd.addNumericField("Min vessel volume (µm3): ", defaults.minVesselVol);
+        gd.addNumericField("Vessel dilation (µm): ", defaults.dilVessel);
+        gd.addChoice("Dilation method: ", dilationModes, defaults.dilationMode);
         
         gd.addMessage("Astrocytes detection", Font.getFont("Monospace"), Color.blue);
-        gd.addChoice("Threshold method: ",thMethods, astroThMethod);
-        gd.addNumericField("Min astrocytic object volume (µm3): ", minAstroVol);
+        gd.addChoice("Threshold method: ",thMethods, defaults.astroThMethod);
+        gd.addNumericField("Min astrocytic object volume (µm3): ", defaults.minAstroVol);
         
         gd.addMessage("Image calibration", Font.getFont("Monospace"), Color.blue);
         gd.addNumericField("XY pixel size (µm): ", cal.pixelWidth);
         gd.addNumericField("Z pixel size (µm): ", cal.pixelDepth);
+        
+        gd.addMessage("Processing", Font.getFont("Monospace"), Color.blue);
+        gd.addChoice("Threshold backend: ", thBackends, defaults.thresholdBackend);
+        gd.addNumericField("Images analyzed in parallel: ", defaults.parallelImages, 0);
+        gd.addNumericField("Vessels cache size (MB, 0 = off): ", defaults.cacheSizeMB, 0);
+        gd.addNumericField("Z slab size (slices, 0 = auto): ", defaults.slabSlices, 0);
+        gd.addCheckbox("Export per-object results", defaults.exportObjects);
+        gd.addStringField("Distance profile bins (µm, empty = off): ", defaults.getProfileBins());
+        gd.addChoice("Result image: ", OverlayWriter.MODES, defaults.overlay);
+        gd.addNumericField("Result image downsampling (XY): ", defaults.overlayDownsample, 0);
+        gd.addChoice("Result image compression: ", TiffWriter.COMPRESSIONS, defaults.overlayCompression);
+        gd.addCheckbox("Write timing and memory reports", defaults.writeReports);
         gd.addHelp(urlHelp);
         gd.showDialog();
         
-        String[] chChoices = new String[channelNames.length];
-        for (int n = 0; n < chChoices.length; n++) 
-            chChoices[n] = gd.getNextChoice();
+        if (gd.wasCanceled())
+            return(null);
         
-        vesselThMethod = gd.getNextChoice();
-        minVesselVol = gd.getNextNumber();
-        dilVessel = (int) gd.getNextNumber();
+        Properties props = new Properties();
+        props.setProperty("vesselCh", gd.getNextChoice());
+        props.setProperty("microCh", gd.getNextChoice());
+        props.setProperty("astroCh", gd.getNextChoice());
         
-        astroThMethod = gd.getNextChoice();
-        minAstroVol = gd.getNextNumber();
+        props.setProperty("vesselThMethod", gd.getNextChoice());
+        props.setProperty("minVesselVol", Double.toString(gd.getNextNumber()));
+        props.setProperty("dilVessel", Integer.toString((int) gd.getNextNumber()));
+        props.setProperty("dilationMode", gd.getNextChoice());
         
-        cal.pixelWidth = cal.pixelHeight = gd.getNextNumber();
-        cal.pixelDepth = gd.getNextNumber();
-        pixVol = cal.pixelWidth*cal.pixelWidth*cal.pixelDepth;
+        props.setProperty("astroThMethod", gd.getNextChoice());
+        props.setProperty("minAstroVol", Double.toString(gd.getNextNumber()));
         
-        if (gd.wasCanceled())
-            chChoices = null; 
+        props.setProperty("pixelWidth", Double.toString(gd.getNextNumber()));
+        props.setProperty("pixelDepth", Double.toString(gd.getNextNumber()));
+        
+        props.setProperty("thresholdBackend", gd.getNextChoice());
+        props.setProperty("parallelImages", Integer.toString((int) gd.getNextNumber()));
+        props.setProperty("cacheSizeMB", Integer.toString((int) gd.getNextNumber()));
+        props.setProperty("slabSlices", Integer.toString((int) gd.getNextNumber()));
+        props.setProperty("exportObjects", Boolean.toString(gd.getNextBoolean()));
+        props.setProperty("profileBins", gd.getNextString());
+        props.setProperty("overlay", gd.getNextChoice());
+        props.setProperty("overlayDownsample", Integer.toString((int) gd.getNextNumber()));
+        props.setProperty("overlayCompression", gd.getNextChoice());
+        props.setProperty("writeReports", Boolean.toString(gd.getNextBoolean()));
+        return(new Parameters(props));
+    }
+    
+    
+    /**
+     * Create a Bio-Formats reader with an OME-XML metadata store and set image in it
+     */
+    public ImageProcessorReader createReader(String imageName) throws DependencyException, ServiceException, FormatException, IOException {
+        ServiceFactory factory = new ServiceFactory();
+        OMEXMLService service = factory.getInstance(OMEXMLService.class);
+        IMetadata meta = service.createOMEXMLMetadata();
+        ImageProcessorReader reader = new ImageProcessorReader();
+        reader.setMetadataStore(meta);
+        reader.setId(imageName);
+        return(reader);
+    }
+    
+    
+    /**
+     * ROIs file of image rootName, .zip or .roi file next to it, null if none
+     */
+    public String findRoiFile(String imageDir, String rootName) {
+        String roiRootName = imageDir + File.separator + rootName; 
+        String roiName = new File(roiRootName + ".zip").exists() ? roiRootName + ".zip" : roiRootName + ".roi";
+        return(new File(roiName).exists() ? roiName : null);
+    }
+    
+    
+    /**
+     * Load ROIs of image rootName if a .zip or .roi file exists next to it
+     * ROIs are decoded directly, without RoiManager, so that it also works headless
+     */
+    public ArrayList<Roi> loadRois(String imageDir, String rootName) throws IOException {
+        ArrayList<Roi> rois = new ArrayList<>();
+        String roiName = findRoiFile(imageDir, rootName);
+        if (roiName == null)
+            return(rois);
         
-        return(chChoices);
+        if (roiName.endsWith(".roi")) {
+            rois.add(RoiDecoder.open(roiName));
+        } else {
+            try (ZipInputStream zip = new ZipInputStream(new FileInputStream(roiName))) {
+                ZipEntry entry;
+                while ((entry = zip.getNextEntry()) != null) {
+                    if (!entry.getName().endsWith(".roi"))
+                        continue;
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    byte[] buf = new byte[8192];
+                    int len;
+                    while ((len = zip.read(buf)) > 0)
+                        bytes.write(buf, 0, len);
+                    Roi roi = new RoiDecoder(bytes.toByteArray(), entry.getName()).getRoi();
+                    if (roi != null)
+                        rois.add(roi);
+                }
+            }
+        }
+        return(rois);
     }
     
     
+    /**
+     * Open channels chIndexes of the image set in reader, decoding each plane only once
+     */
+    public ImagePlus[] openChannels(ImageProcessorReader reader, String rootName, int[] chIndexes, Parameters params) throws FormatException, IOException {
+        return(new ChannelLoader().openChannels(reader, rootName, chIndexes, params.getCalibration()));
+    }
+
+
     /**
      * Flush and close an image
      */
@@ -305,85 +403,135 @@ public class Tools {
     
     
     /**
-     * Find population of vessels
+     * Find vessels label image
      */
-    public Objects3DIntPopulation findVessels(ImagePlus imgVessel, ImagePlus imgMicro, ArrayList<Roi> rois) {
-        // Detect microglia
-        ImagePlus imgMicroMed = new Duplicator().run(imgMicro);
-        IJ.run(imgMicroMed, "Median...", "radius=8 stack");
-        ImagePlus imgMicroBin = threshold(imgMicroMed, microThMethod);
-        Objects3DIntPopulation microgliaPop = new Objects3DIntPopulation(ImageHandler.wrap(imgMicroBin));
+    public ImagePlus findVessels(ImagePlus imgVessel, ImagePlus imgMicro, RoiMask roiMask, Parameters params) {
+        Mask3D microMask = findMicroglia(imgMicro, params);
+        ImagePlus imgVesselLOG = filterVessels(imgVessel);
+        ConnectedComponents cc = segmentVessels(imgVesselLOG, microMask, roiMask, params.vesselThMethod, params);
+        ImagePlus imgVesselLabels = cc.getLabelImage("vessels", params.getCalibration());
         
-        // Detect vessels
-        ImagePlus imgVesselLOG = imgVessel.duplicate();
-        IJ.run(imgVesselLOG, "Laplacian of Gaussian", "sigma=14 scale_normalised negate stack");
-        ImagePlus imgVesselBin = threshold(imgVesselLOG, vesselThMethod);
-        imgVesselBin.setCalibration(cal);
-               
-        // Fill ROIs in black in vessels image
-        if (!rois.isEmpty())
-            fillImg(imgVesselBin, rois);
-        
-        // Fill microglia in black in vessels image
-        ImageHandler imgVesselBinH = ImageHandler.wrap(new Duplicator().run(imgVesselBin));
-        for (Object3DInt microglia: microgliaPop.getObjects3DInt()) 
-            microglia.drawObject(imgVesselBinH, 0);
+        flushCloseImg(imgVesselLOG);
+        return(imgVesselLabels);
+    }
+    
+    
+    /**
+     * Detect microglia with median filtering + thresholding
+     */
+    public Mask3D findMicroglia(ImagePlus imgMicro, Parameters params) {
+        ImagePlus imgMicroMed = filterMicroglia(imgMicro);
+        Mask3D microMask = thresholdMask(imgMicroMed, params.microThMethod, params);
+        flushCloseImg(imgMicroMed);
+        return(microMask);
+    }
+    
+    
+    /**
+     * Filter microglia channel with median
+     */
+    public ImagePlus filterMicroglia(ImagePlus imgMicro) {
+        try (Instrumentation.Stage stage = instr.stage("median microglia").voxels(getNbVoxels(imgMicro))) {
+            return(microMedian.filter(imgMicro));
+        }
+    }
+    
+    
+    /**
+     * Filter vessels channel with LoG
+     */
+    public ImagePlus filterVessels(ImagePlus imgVessel) {
+        try (Instrumentation.Stage stage = instr.stage("LoG vessels").voxels(getNbVoxels(imgVessel))) {
+            return(vesselLoG.filter(imgVessel));
+        }
+    }
+    
+    
+    /**
+     * Threshold vessels LoG image with thMethod, clear microglia and ROIs in it, then label vessels and filter them by size
+     */
+    public ConnectedComponents segmentVessels(ImagePlus imgVesselLOG, Mask3D microMask, RoiMask roiMask, String thMethod, Parameters params) {
+        Mask3D vesselMask = thresholdMask(imgVesselLOG, thMethod, params);
         
-        // Vessels size filtering
-        Objects3DIntPopulation vesselsPop = getPopFromImage(imgVesselBinH.getImagePlus());
-        System.out.println("Nb vessels detected:"+vesselsPop.getNbObjects());
-        popFilterSize(vesselsPop, minVesselVol, Double.MAX_VALUE);
-        System.out.println("Nb vessels remaining after size filtering: "+ vesselsPop.getNbObjects());
+        // Remove microglia and ROIs from vessels mask
+        vesselMask.andNot(microMask);
+        roiMask.clear(vesselMask);
         
-        flushCloseImg(imgMicroMed);
-        flushCloseImg(imgMicroBin);
-        flushCloseImg(imgVesselBinH.getImagePlus());
-        flushCloseImg(imgVesselLOG);
-        flushCloseImg(imgVesselBin);
-        return(vesselsPop);
+        // Vessels labelling and size filtering
+        ConnectedComponents cc = labelComponents(vesselMask, params.minVesselVol, Double.MAX_VALUE, params);
+        System.out.println("Nb vessels detected:"+cc.getNbDetected());
+        System.out.println("Nb vessels remaining after size filtering: "+ cc.getNbKept());
+        return(cc);
+    }
+    
+    
+    /**
+     * Threshold with backend chosen in parameters, 1 above threshold and 0 elsewhere
+     */
+    public ImagePlus threshold(ImagePlus img, String thMed, Parameters params) {
+        try (Instrumentation.Stage stage = instr.stage("threshold").voxels(getNbVoxels(img))) {
+            return(getThresholdBackend(params).threshold(img, thMed));
+        }
+    }
+    
+    
+    /**
+     * Threshold with backend chosen in parameters into a bit-packed mask
+     */
+    public Mask3D thresholdMask(ImagePlus img, String thMed, Parameters params) {
+        try (Instrumentation.Stage stage = instr.stage("threshold").voxels(getNbVoxels(img))) {
+            return(getThresholdBackend(params).thresholdMask(img, thMed));
+        }
     }
     
     
     /**
-     * Threshold using CLIJ2
+     * Name of the threshold backend used with params, "auto" resolved to "clij" or "cpu" for this host
+     */
+    public String getThresholdBackendName(Parameters params) {
+        return(getThresholdBackend(params).getName());
+    }
+
+
+    /**
+     * Return threshold backend of the run, selected at first call
      */
-    public ImagePlus threshold(ImagePlus img, String thMed) {
-        ClearCLBuffer imgCL = clij2.push(img);
-        ClearCLBuffer imgCLBin = clij2.create(imgCL);
-        clij2.automaticThreshold(imgCL, imgCLBin, thMed);
-        ImagePlus imgBin = clij2.pull(imgCLBin);
-        clij2.release(imgCL);
-        clij2.release(imgCLBin);
-        return(imgBin);
+    private synchronized ThresholdBackend getThresholdBackend(Parameters params) {
+        if (thBackend == null || (!params.thresholdBackend.equals("auto") && !thBackend.getName().equals(params.thresholdBackend))) {
+            thBackend = ThresholdBackend.create(params.thresholdBackend);
+            print("Thresholding with " + thBackend.getName() + " backend");
+        }
+        return(thBackend);
     }
     
         
     /**
-     * Fill ROIs in black in image
+     * Label connected components of binary image with a volume in [min, max]
      */
-    private ImagePlus fillImg(ImagePlus img, ArrayList<Roi> rois) {
-        img.getProcessor().setColor(Color.BLACK);
-        for (int s = 1; s <= img.getNSlices(); s++) {
-            img.setSlice(s);
-            for (Roi r : rois) {
-                img.setRoi(r);
-                img.getProcessor().fill(img.getRoi());
-            }
+    public ConnectedComponents labelComponents(ImagePlus img, double min, double max, Parameters params) {
+        return(labelComponents(ByteMask3D.wrap(img.getStack()), min, max, params));
+    }
+    
+    
+    /**
+     * Label connected components of mask with a volume in [min, max]
+     */
+    public ConnectedComponents labelComponents(Mask3D mask, double min, double max, Parameters params) {
+        try (Instrumentation.Stage stage = instr.stage("labelling").voxels((long) mask.getWidth() * mask.getHeight() * mask.getDepth())) {
+            ConnectedComponents cc = new ConnectedComponents(mask.getWidth(), mask.getHeight(), mask.getDepth());
+            cc.compute(mask, min, max, params.pixVol);
+            stage.objects(cc.getNbKept());
+            return(cc);
         }
-        img.deleteRoi();
-        return(img);
-    } 
+    }
     
     
     /**
-     * Return population of 3D objects population from binary image
+     * Return population of 3D objects of a label image
      */
-    private Objects3DIntPopulation getPopFromImage(ImagePlus img) {
-        ImageLabeller labeller = new ImageLabeller();
-        ImageInt labels = labeller.getLabels(ImageHandler.wrap(img));
-        Objects3DIntPopulation pop = new Objects3DIntPopulation(labels);
-        return pop;
-    } 
+    public Objects3DIntPopulation getPopFromLabels(ImagePlus imgLabels) {
+        return(new Objects3DIntPopulation(ImageHandler.wrap(imgLabels)));
+    }
     
     
     /**
@@ -398,61 +546,117 @@ public class Tools {
     /**
      * Find population of astrocytes
      */
-    public Objects3DIntPopulation findAstrocytes(ImagePlus imgAstro, ArrayList<Roi> rois) {
-        // Detect astrocytes
-        ImagePlus imgBin = new Duplicator().run(imgAstro);
-        IJ.run(imgBin, "Median...", "radius=2 stack");
-        IJ.run(imgBin, "Convert to Mask", "method="+astroThMethod+" background=Dark calculate black");
-        imgBin.setCalibration(cal);
-
-        // Fill ROIs in black
-        if (!rois.isEmpty()) {
-            fillImg(imgBin, rois);
+    public RunLengthPopulation findAstrocytes(ImagePlus imgAstro, RoiMask roiMask, Parameters params) {
+        ImagePlus imgAstroMed = filterAstrocytes(imgAstro);
+        ConnectedComponents cc = segmentAstrocytes(imgAstroMed, roiMask, params.astroThMethod, params);
+        return(RunLengthPopulation.fromLabels(cc.getLabels(), imgAstro.getWidth(), imgAstro.getHeight()));
+    }
+    
+    
+    /**
+     * Filter astrocytes channel with median
+     */
+    public ImagePlus filterAstrocytes(ImagePlus imgAstro) {
+        try (Instrumentation.Stage stage = instr.stage("median astrocytes").voxels(getNbVoxels(imgAstro))) {
+            return(astroMedian.filter(imgAstro));
         }
+    }
+    
+    
+    /**
+     * Threshold filtered astrocytes image with thMethod in place, clear ROIs in it, then label astrocytic objects and filter them by size
+     */
+    public ConnectedComponents segmentAstrocytes(ImagePlus imgAstroMed, RoiMask roiMask, String thMethod, Parameters params) {
+        binarizeAstrocytes(imgAstroMed, roiMask, thMethod, params);
         
-        // Astrocytes size filtering
-        Objects3DIntPopulation astroPop = getPopFromImage(imgBin);
-        System.out.println("Nb astrocytic objects detected:"+astroPop.getNbObjects());
-        popFilterSize(astroPop, minAstroVol, Double.MAX_VALUE);
-        System.out.println("Nb astrocytic objects remaining after size filtering: "+ astroPop.getNbObjects());
+        // Astrocytes labelling and size filtering
+        ConnectedComponents cc = labelComponents(imgAstroMed, params.minAstroVol, Double.MAX_VALUE, params);
+        System.out.println("Nb astrocytic objects detected:"+cc.getNbDetected());
+        System.out.println("Nb astrocytic objects remaining after size filtering: "+ cc.getNbKept());
         
-        flushCloseImg(imgBin);
-        return(astroPop);
+        flushCloseImg(imgAstroMed);
+        return(cc);
     }
        
     
+    /**
+     * Threshold filtered astrocytes image with thMethod in place, each slice with its own threshold, and clear ROIs in it
+     */
+    public void binarizeAstrocytes(ImagePlus imgAstroMed, RoiMask roiMask, String thMethod, Parameters params) {
+        try (Instrumentation.Stage stage = instr.stage("binarize astrocytes").voxels(getNbVoxels(imgAstroMed))) {
+            // Same as Convert to Mask with calculate option, but without its dialog so that it runs headless
+            ImageStack stack = imgAstroMed.getStack();
+            ImageStack mask = new ImageStack(imgAstroMed.getWidth(), imgAstroMed.getHeight());
+            for (int z = 1; z <= stack.getSize(); z++) {
+                ImageProcessor ip = stack.getProcessor(z);
+                if (!(ip instanceof ByteProcessor)) {
+                    ip.resetMinAndMax();
+                    ip = ip.convertToByte(true);
+                }
+                ip.setAutoThreshold(thMethod, true, ImageProcessor.NO_LUT_UPDATE);
+                int[] lut = new int[256];
+                for (int v = 0; v < 256; v++)
+                    lut[v] = (v >= ip.getMinThreshold() && v <= ip.getMaxThreshold()) ? 255 : 0;
+                ip.applyTable(lut);
+                ip.resetThreshold();
+                mask.addSlice(stack.getSliceLabel(z), ip);
+            }
+            imgAstroMed.setStack(mask);
+            imgAstroMed.setCalibration(params.getCalibration());
+
+            // Fill ROIs in black
+            roiMask.clear(imgAstroMed);
+        }
+    }
+    
+    
+    /**
+     * Number of voxels of a stack
+     */
+    public static long getNbVoxels(ImagePlus img) {
+        return((long) img.getWidth() * img.getHeight() * img.getNSlices());
+    }
+    
+    
     /**
      * Find astrocytes into and out of vessels
+     * Runs of each astrocytic object are split against dilated vessels, in and out parts keep the object label
+     * Return astrocytes in and astrocytes out populations
      */
-    public List<Objects3DIntPopulation> findAstroInOutVessels(Objects3DIntPopulation astrocytesPop, Objects3DIntPopulation vesselsPop, ImagePlus imgAstro) {
-        ImageHandler imhDilVessels = ImageHandler.wrap(imgAstro).createSameDimensions();
-        ImageHandler imh = ImageHandler.wrap(imgAstro).createSameDimensions();
-        astrocytesPop.drawInImage(imh);
-        ImageHandler imhDup = imh.duplicate();
-        
-        for (Object3DInt vessel: vesselsPop.getObjects3DInt()) {
-            Object3DInt vesselDil = dilateObj(vessel, imgAstro, dilVessel);
-            vesselDil.drawObject(imhDilVessels, vessel.getLabel());
-            vesselDil.drawObject(imh, 0);
+    public List<RunLengthPopulation> findAstroInOutVessels(RunLengthPopulation astrocytesPop, ImagePlus imgDilVessels) {
+        RunLengthPopulation[] inOut = astrocytesPop.split(ByteMask3D.wrap(imgDilVessels.getStack()));
+        return(Arrays.asList(inOut[0], inOut[1]));  
+    }
+    
+    
+    /**
+     * Dilate vessels by dilVessel µm, restricted to image borders
+     * Each dilated vessel is drawn with the label of its vessel
+     * "distance" mode thresholds a single distance map of all vessels, each voxel taking the label of its nearest vessel,
+     * "objects" mode dilates each vessel separately
+     */
+    public ImageHandler dilateVessels(ImagePlus imgVesselLabels, Parameters params) {
+        ImageHandler imhDilVessels = ImageHandler.wrap(imgVesselLabels).createSameDimensions();
+        if (params.dilationMode.equals("objects")) {
+            for (Object3DInt vessel: getPopFromLabels(imgVesselLabels).getObjects3DInt()) {
+                Object3DInt vesselDil = dilateObj(vessel, imgVesselLabels, params.dilVessel, params);
+                vesselDil.drawObject(imhDilVessels, vessel.getLabel());
+            }
+        } else {
+            DistanceTransform edt = new DistanceTransform(imgVesselLabels.getWidth(), imgVesselLabels.getHeight(), imgVesselLabels.getNSlices(),
+                    params.pixelWidth, params.pixelDepth);
+            edt.compute(imgVesselLabels.getStack());
+            edt.drawDilatedLabels(imhDilVessels.getImagePlus().getStack(), params.dilVessel);
         }
-        
-        Objects3DIntPopulation dilVesselsPop = new Objects3DIntPopulation(imhDilVessels);
-        Objects3DIntPopulation popOut = new Objects3DIntPopulation(imh);
-        ImagePlus imgSub = new ImageCalculator().run("subtract stack create", imhDup.getImagePlus(), imh.getImagePlus());
-        Objects3DIntPopulation popIn = new Objects3DIntPopulation(ImageHandler.wrap(imgSub));
-        
-        imhDilVessels.closeImagePlus();
-        imh.closeImagePlus();
-        imhDup.closeImagePlus();
-        return(Arrays.asList(popIn, popOut, dilVesselsPop));  
+        return(imhDilVessels);
     }
 
     
     /**
      * Return dilated object restricted to image borders
      */
-    public Object3DInt dilateObj(Object3DInt obj, ImagePlus img, double dilSize) {
-        Object3DInt objDil = new Object3DComputation(obj).getObjectDilated((float)(dilSize/cal.pixelWidth), (float)(dilSize/cal.pixelHeight),(float)(dilSize/cal.pixelDepth));
+    public Object3DInt dilateObj(Object3DInt obj, ImagePlus img, double dilSize, Parameters params) {
+        Object3DInt objDil = new Object3DComputation(obj).getObjectDilated((float)(dilSize/params.pixelWidth), (float)(dilSize/params.pixelWidth),(float)(dilSize/params.pixelDepth));
         
         // Check if object goes over image borders
         BoundingBox bbox = objDil.getBoundingBox();
@@ -474,86 +678,13 @@ public class Tools {
 
   
     /**
-     * Draw results
-     */
-    public void drawResults(ImagePlus imgAstro, Objects3DIntPopulation vesselsPop, Objects3DIntPopulation astroIn, Objects3DIntPopulation astroOut,
-            String outDirResults, String rootName) {
-        ImageHandler imgVessels = ImageHandler.wrap(imgAstro).createSameDimensions();
-        ImageHandler imgAstroIn = ImageHandler.wrap(imgAstro).createSameDimensions();
-        ImageHandler imgAstroOut = ImageHandler.wrap(imgAstro).createSameDimensions();
-        
-        // Draw vessels pop in blue, astroIn pop in red and astroOut pop in green
-        for (Object3DInt vessel: vesselsPop.getObjects3DInt()) 
-                vessel.drawObject(imgVessels, 255);
-        for (Object3DInt ob : astroIn.getObjects3DInt()) 
-                ob.drawObject(imgAstroIn, 255);
-        for (Object3DInt ob : astroOut.getObjects3DInt()) 
-                ob.drawObject(imgAstroOut, 255);
-        ImagePlus[] imgColors = {imgAstroIn.getImagePlus(), imgAstroOut.getImagePlus(), imgVessels.getImagePlus()};
-        ImagePlus imgObjects = new RGBStackMerge().mergeHyperstacks(imgColors, false);
-        imgObjects.setCalibration(cal);
-        IJ.run(imgObjects, "Enhance Contrast", "saturated=0.35");
-
-        // Save resulting image
-        FileSaver ImgObjectsFile = new FileSaver(imgObjects);
-        ImgObjectsFile.saveAsTiff(outDirResults + rootName + ".tif");
-        
-        imgVessels.closeImagePlus();
-        imgAstroIn.closeImagePlus();
-        imgAstroOut.closeImagePlus();
-    }
-    
-    
-    /**
-     * Write results
-     */
-    public void writeResults(BufferedWriter results, Objects3DIntPopulation vesselsPop, Objects3DIntPopulation dilVesselsPop, 
-            Objects3DIntPopulation astroIn, Objects3DIntPopulation astroOut, 
-            ImagePlus imgAstro, ArrayList<Roi> rois, String imgName) throws IOException {
-        
-        double imgVol = imgAstro.getWidth() * imgAstro.getHeight() * imgAstro.getNSlices() * pixVol;
-        double roisVol = getRoisVolume(rois, imgAstro);
-        double vesselsVol = findPopVolume(vesselsPop);
-        double dilVesselsVol = findPopVolume(dilVesselsPop);
-        
-        double astroInVol = findPopVolume(astroIn);
-        double astroOutVol = findPopVolume(astroOut);
-        
-        results.write(imgName+"\t"+imgVol+"\t"+(imgVol-roisVol)+"\t"+vesselsVol+"\t"+dilVesselsVol+"\t"+astroInVol+"\t"+astroOutVol+"\n");
-        results.flush();
-    }
-    
-    
-    /**
-     * Compute ROIs total volume
-     */
-    public double getRoisVolume(ArrayList<Roi> rois, ImagePlus img) {
-        double roisVol = 0;
-        for(Roi roi: rois) {
-            PolygonRoi poly = new PolygonRoi(roi.getFloatPolygon(), Roi.FREEROI);
-            poly.setLocation(0, 0);
-            
-            img.resetRoi();
-            img.setRoi(poly);
-
-            ResultsTable rt = new ResultsTable();
-            Analyzer analyzer = new Analyzer(img, Analyzer.AREA, rt);
-            analyzer.measure();
-            roisVol += rt.getValue("Area", 0);
-        }
-
-        return(roisVol * img.getNSlices() * cal.pixelDepth);
-    }
-    
-
-    /**
-     * Find total volume of objects in population
+     * Return results row of an image
+     * All columns are computed in one pass over vessels, dilated vessels and astrocytes labels
      */
-    public double findPopVolume(Objects3DIntPopulation pop) {
-        double totalVol = 0;
-        for(Object3DInt obj: pop.getObjects3DInt())
-            totalVol += new MeasureVolume(obj).getVolumeUnit();
-        return(totalVol);
+    public String getResults(ImagePlus imgVesselLabels, ImagePlus imgDilVessels, RunLengthPopulation astrocytesPop, 
+            RoiMask roiMask, String imgName, Parameters params) {
+        LabelHistograms h = measurements.measure(imgVesselLabels, imgDilVessels, astrocytesPop, roiMask);
+        return(measurements.getRow(imgName, h, params));
     }
     
 }
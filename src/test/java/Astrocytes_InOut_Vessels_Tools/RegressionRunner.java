@@ -0,0 +1,532 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.io.FileSaver;
+import ij.io.RoiEncoder;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.io.FileUtils;
+
+
+/**
+ * End-to-end regression run: full headless analysis of a fixed corpus, compared with golden outputs
+ *
+ * Usage: RegressionRunner --dir DIR [--work DIR] [--record] [--KEY VALUE ...]
+ *   DIR/corpus     images and ROIs analyzed, synthetic stacks are generated in it if it holds no image
+ *   DIR/golden     golden outputs, laid out as the results folder, and budget.properties
+ *   --work DIR     folder corpus is copied to and analyzed in, so that DIR is left unchanged, DIR/corpus by default
+ *   --record       write outputs of this run as golden outputs, with budgets of wall time and peak heap
+ *   --KEY VALUE    any Parameters key, passed to the analysis
+ * src/test/regression holds the corpus and golden outputs run by mvn -P regression verify
+ * Every output of the results folder, but reports and manifest, must have a golden output and the reverse
+ * Every column of results.xls, profiles and objects tables must match within relative and absolute tolerances,
+ * every drawing must have the same size and at most a fraction of differing voxels, other outputs must be
+ * identical, wall time and peak heap must stay within budget
+ * Thresholds run on CPU and vessels are dilated in distance mode, so that no GPU is needed, objects and profiles
+ * are written unless overridden
+ * Exit status is 0 if all checks pass, 1 otherwise, 2 on usage error
+ * @author ORION-CIRB
+ */
+public class RegressionRunner {
+
+    // Synthetic corpus: name, size, density, seed, with ROIs
+    private static final Object[][] CORPUS = {
+        {"synthetic_sparse", "128x128x16", 0.5, 1L, false},
+        {"synthetic_dense", "96x96x20", 2.0, 2L, false},
+        {"synthetic_rois", "128x128x16", 1.0, 3L, true}
+    };
+    // Budgets recorded are measures of the recording run times these margins
+    private static final double WALL_MARGIN = 1.5;
+    private static final double HEAP_MARGIN = 1.25;
+    // Commas of objects CSV rows outside the quoted image name
+    private static final String CSV_SEPARATOR = ",(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)";
+
+    private final Tools tools = new Tools();
+
+
+    public static void main(String[] args) {
+        int status;
+        try {
+            status = new RegressionRunner().run(args);
+        } catch (Exception ex) {
+            Logger.getLogger(RegressionRunner.class.getName()).log(Level.SEVERE, null, ex);
+            status = 1;
+        }
+        System.exit(status);
+    }
+
+
+    /**
+     * Parse arguments, run analysis of corpus and check or record its outputs, return exit status
+     */
+    public int run(String[] args) throws Exception {
+        String dir = null, work = null;
+        boolean record = false;
+        Properties overrides = new Properties();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--dir" :
+                    if (i+1 >= args.length)
+                        return(usage("Missing folder after --dir"));
+                    dir = args[++i];
+                    break;
+                case "--work" :
+                    if (i+1 >= args.length)
+                        return(usage("Missing folder after --work"));
+                    work = args[++i];
+                    break;
+                case "--record" :
+                    record = true;
+                    break;
+                default :
+                    if (!args[i].startsWith("--") || i+1 >= args.length)
+                        return(usage("Unknown argument " + args[i]));
+                    overrides.setProperty(args[i].substring(2), args[++i]);
+            }
+        }
+        if (dir == null)
+            return(usage("Missing --dir"));
+        File corpusDir = new File(dir, "corpus");
+        File goldenDir = new File(dir, "golden");
+        File budgetFile = new File(goldenDir, "budget.properties");
+        if (!record && !budgetFile.exists())
+            return(usage("No golden outputs in " + goldenDir + ", run with --record first"));
+
+        // Corpus
+        corpusDir.mkdirs();
+        if (tools.findImageType(corpusDir).isEmpty())
+            generateCorpus(corpusDir);
+
+        // Fresh analysis: previous results, manifest and cache would let images be skipped
+        File analysisDir = corpusDir;
+        if (work != null) {
+            analysisDir = new File(work);
+            FileUtils.deleteDirectory(analysisDir);
+            analysisDir.mkdirs();
+            for (File f: corpusDir.listFiles(File::isFile))
+                Files.copy(f.toPath(), new File(analysisDir, f.getName()).toPath());
+        }
+        File[] previous = analysisDir.listFiles((d, name) -> name.startsWith("Results_") || name.equals("Cache"));
+        for (File f: previous)
+            FileUtils.deleteDirectory(f);
+        List<String> runArgs = new ArrayList<>();
+        Properties props = new Properties();
+        props.setProperty("thresholdBackend", "cpu");
+        props.setProperty("dilationMode", "distance");
+        props.setProperty("cacheSizeMB", "0");
+        props.setProperty("pixelWidth", "1");
+        props.setProperty("pixelDepth", "1");
+        props.setProperty("exportObjects", "true");
+        props.setProperty("profileBins", "1,2,4,8");
+        props.putAll(overrides);
+        runArgs.add("--input");
+        runArgs.add(analysisDir.getPath());
+        for (String key: props.stringPropertyNames()) {
+            runArgs.add("--" + key);
+            runArgs.add(props.getProperty(key));
+        }
+
+        // Run analysis, measuring wall time and peak heap
+        List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                heapPools.add(pool);
+        System.gc();
+        for (MemoryPoolMXBean pool: heapPools)
+            pool.resetPeakUsage();
+        long start = System.nanoTime();
+        int status = new HeadlessRunner().run(runArgs.toArray(new String[0]));
+        double wallMs = (System.nanoTime() - start) / 1e6;
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool: heapPools)
+            peakHeap += pool.getPeakUsage().getUsed();
+        double peakHeapMB = peakHeap / (1024.0*1024.0);
+        if (status != 0) {
+            System.out.println("FAIL analysis exited with status " + status);
+            return(1);
+        }
+        File[] resultsDirs = analysisDir.listFiles((d, name) -> name.startsWith("Results_"));
+        if (resultsDirs.length != 1) {
+            System.out.println("FAIL expected one results folder in " + analysisDir);
+            return(1);
+        }
+        File resultsDir = resultsDirs[0];
+        System.out.println(String.format("Analysis took %.0f ms, peak heap %.0f MB", wallMs, peakHeapMB));
+
+        if (record) {
+            recordGolden(resultsDir, goldenDir, budgetFile, wallMs, peakHeapMB);
+            return(0);
+        }
+
+        Properties budget = new Properties();
+        try (FileReader reader = new FileReader(budgetFile)) {
+            budget.load(reader);
+        }
+        int nbFailures = 0;
+        List<String> outputs = listOutputs(resultsDir);
+        for (String name: listOutputs(goldenDir)) {
+            if (name.equals(budgetFile.getName()))
+                continue;
+            if (outputs.remove(name))
+                nbFailures += checkOutput(name, new File(goldenDir, name), new File(resultsDir, name), budget);
+            else
+                nbFailures += fail(name + " not written");
+        }
+        for (String name: outputs)
+            nbFailures += fail(name + " has no golden output, run with --record to accept it");
+        nbFailures += checkBudget("wall time (ms)", wallMs, Double.parseDouble(budget.getProperty("wallMs")));
+        nbFailures += checkBudget("peak heap (MB)", peakHeapMB, Double.parseDouble(budget.getProperty("peakHeapMB")));
+        System.out.println((nbFailures == 0) ? "All checks passed" : nbFailures + " checks failed");
+        return((nbFailures == 0) ? 0 : 1);
+    }
+
+
+    /**
+     * Write synthetic stacks of corpus as 3-channel TIFF hyperstacks, with a ROIs file for some of them
+     */
+    private void generateCorpus(File corpusDir) throws IOException {
+        Parameters params = new Parameters(new Properties());
+        for (Object[] image: CORPUS) {
+            String name = (String) image[0];
+            System.out.println("Generating " + name);
+            ImagePlus[] channels = SyntheticVolume.of((String) image[1], (Double) image[2], (Long) image[3]).generate(params);
+            int depth = channels[0].getNSlices();
+            ImageStack stack = new ImageStack(channels[0].getWidth(), channels[0].getHeight());
+            for (int z = 1; z <= depth; z++)
+                for (ImagePlus channel: channels)
+                    stack.addSlice(channel.getStack().getProcessor(z));
+            ImagePlus imp = new ImagePlus(name, stack);
+            imp.setDimensions(channels.length, depth, 1);
+            imp.setOpenAsHyperStack(true);
+            Calibration cal = params.getCalibration();
+            cal.setUnit("micron");
+            imp.setCalibration(cal);
+            new FileSaver(imp).saveAsTiffStack(new File(corpusDir, name + ".tif").getPath());
+            if ((Boolean) image[4])
+                writeRois(new File(corpusDir, name + ".zip"), new Roi(0, 0, imp.getWidth() / 4, imp.getHeight() / 4),
+                        new Roi(imp.getWidth() / 2, imp.getHeight() / 2, imp.getWidth() / 8, imp.getHeight() / 3));
+        }
+    }
+
+
+    private void writeRois(File file, Roi... rois) throws IOException {
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file))) {
+            for (int r = 0; r < rois.length; r++) {
+                zip.putNextEntry(new ZipEntry("roi" + r + ".roi"));
+                zip.write(RoiEncoder.saveAsByteArray(rois[r]));
+                zip.closeEntry();
+            }
+        }
+    }
+
+
+    /**
+     * Paths relative to dir of its outputs, reports and manifests excluded as they hold times and fingerprints
+     */
+    private List<String> listOutputs(File dir) throws IOException {
+        Path root = dir.toPath();
+        try (Stream<Path> paths = Files.walk(root)) {
+            return(paths.filter(Files::isRegularFile)
+                    .map(path -> root.relativize(path).toString().replace(File.separatorChar, '/'))
+                    .filter(name -> !name.startsWith("Reports/") && !name.matches("manifest.*\\.txt"))
+                    .sorted().collect(Collectors.toCollection(ArrayList::new)));
+        }
+    }
+
+
+    /**
+     * Copy every output as golden output, and write budgets and tolerances
+     * Tolerances of a previous recording are kept
+     */
+    private void recordGolden(File resultsDir, File goldenDir, File budgetFile, double wallMs, double peakHeapMB) throws IOException {
+        Properties budget = new Properties();
+        budget.setProperty("relTolerance", "1e-6");
+        budget.setProperty("absTolerance", "1e-9");
+        budget.setProperty("voxelTolerance", "0.0001");
+        if (budgetFile.exists()) {
+            try (FileReader reader = new FileReader(budgetFile)) {
+                budget.load(reader);
+            }
+        }
+        budget.setProperty("wallMs", String.format(Locale.ROOT, "%.0f", wallMs * WALL_MARGIN));
+        budget.setProperty("peakHeapMB", String.format(Locale.ROOT, "%.0f", peakHeapMB * HEAP_MARGIN));
+
+        if (goldenDir.exists())
+            FileUtils.deleteDirectory(goldenDir);
+        goldenDir.mkdirs();
+        for (String name: listOutputs(resultsDir)) {
+            File golden = new File(goldenDir, name);
+            golden.getParentFile().mkdirs();
+            Files.copy(new File(resultsDir, name).toPath(), golden.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        try (FileWriter writer = new FileWriter(budgetFile)) {
+            budget.store(writer, "Golden outputs budgets and tolerances");
+        }
+        System.out.println("Golden outputs recorded in " + goldenDir);
+    }
+
+
+    /**
+     * Compare output with golden one according to its type, return number of failures
+     */
+    private int checkOutput(String name, File golden, File output, Properties budget) {
+        double relTol = Double.parseDouble(budget.getProperty("relTolerance"));
+        double absTol = Double.parseDouble(budget.getProperty("absTolerance"));
+        try {
+            if (name.equals("results.xls"))
+                return(checkResults(golden, output, relTol, absTol));
+            if (name.endsWith(".tif"))
+                return(checkDrawing(golden, output, Double.parseDouble(budget.getProperty("voxelTolerance"))));
+            if (name.endsWith(".xls") || name.endsWith(".csv.gz") || name.endsWith(".bin"))
+                return(checkTable(name, golden, output, relTol, absTol));
+            if (!Arrays.equals(Files.readAllBytes(golden.toPath()), Files.readAllBytes(output.toPath())))
+                return(fail(name + " differs"));
+            System.out.println("OK " + name);
+            return(0);
+        } catch (IOException ex) {
+            return(fail(name + " cannot be read: " + ex.getMessage()));
+        }
+    }
+
+
+    /**
+     * Compare every column of every row of results table with golden one, return number of failures
+     */
+    private int checkResults(File golden, File results, double relTol, double absTol) throws IOException {
+        Map<String, String[]> goldenRows = readRows(golden);
+        Map<String, String[]> rows = readRows(results);
+        String[] header = goldenRows.remove("");
+        if (!String.join("\t", header).equals(String.join("\t", rows.remove(""))))
+            return(fail("results.xls header changed"));
+        int nbFailures = 0;
+        for (Map.Entry<String, String[]> e: goldenRows.entrySet()) {
+            String[] expected = e.getValue();
+            String[] actual = rows.remove(e.getKey());
+            if (actual == null) {
+                nbFailures += fail("results.xls has no row for " + e.getKey());
+                continue;
+            }
+            nbFailures += checkRow("results.xls " + e.getKey(), header, expected, actual, 1, relTol, absTol);
+        }
+        for (String name: rows.keySet())
+            nbFailures += fail("results.xls has unexpected row " + name);
+        if (nbFailures == 0)
+            System.out.println("OK results.xls, " + goldenRows.size() + " rows");
+        return(nbFailures);
+    }
+
+
+    /**
+     * Compare header and rows of a profiles or objects table with golden one, in order, return number of failures
+     */
+    private int checkTable(String name, File golden, File output, double relTol, double absTol) throws IOException {
+        List<String[]> expected = readTable(golden);
+        List<String[]> actual = readTable(output);
+        if (expected.isEmpty() || actual.isEmpty() || !Arrays.equals(expected.get(0), actual.get(0)))
+            return(fail(name + " header changed"));
+        if (expected.size() != actual.size())
+            return(fail(String.format("%s: %d rows instead of %d", name, actual.size() - 1, expected.size() - 1)));
+        String[] header = expected.get(0);
+        int nbFailures = 0;
+        for (int r = 1; r < expected.size(); r++)
+            nbFailures += checkRow(name + " row " + r, header, expected.get(r), actual.get(r), 0, relTol, absTol);
+        if (nbFailures == 0)
+            System.out.println("OK " + name + ", " + (expected.size() - 1) + " rows");
+        return(nbFailures);
+    }
+
+
+    /**
+     * Compare columns from first on of row with golden one, return number of failures
+     */
+    private int checkRow(String row, String[] header, String[] expected, String[] actual, int first, double relTol, double absTol) {
+        int nbFailures = 0;
+        for (int c = first; c < expected.length; c++) {
+            String column = (c < header.length) ? header[c] : "column " + c;
+            if (c >= actual.length)
+                nbFailures += fail(row + " " + column + ": missing");
+            else if (!matches(expected[c], actual[c], relTol, absTol))
+                nbFailures += fail(row + " " + column + ": " + actual[c] + " instead of " + expected[c]);
+        }
+        if (actual.length > expected.length)
+            nbFailures += fail(row + ": " + (actual.length - expected.length) + " unexpected columns");
+        return(nbFailures);
+    }
+
+
+    /**
+     * Header and rows of a tab-separated table, of a gzip compressed CSV table, or of a binary objects table
+     */
+    private List<String[]> readTable(File file) throws IOException {
+        if (file.getName().endsWith(".bin"))
+            return(readObjectsBinary(file));
+        boolean csv = file.getName().endsWith(".csv.gz");
+        List<String[]> rows = new ArrayList<>();
+        InputStream in = csv ? new GZIPInputStream(new FileInputStream(file)) : new FileInputStream(file);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null)
+                if (!line.isEmpty())
+                    rows.add(line.split(csv ? CSV_SEPARATOR : "\t", -1));
+        }
+        return(rows);
+    }
+
+
+    /**
+     * Header and rows of a binary objects table written by ObjectTableWriter
+     * Header holds format version and columns with their type, rows the image name and values
+     */
+    private List<String[]> readObjectsBinary(File file) throws IOException {
+        List<String[]> rows = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            byte[] magic = new byte[4];
+            in.readFully(magic);
+            if (!new String(magic, StandardCharsets.US_ASCII).equals("AIVO"))
+                throw new IOException("not a binary objects table");
+            String version = "version " + in.readInt();
+            String imageName = in.readUTF();
+            int nbColumns = in.readInt();
+            String[] header = new String[nbColumns+1];
+            boolean[] isInt = new boolean[nbColumns];
+            header[0] = version;
+            for (int c = 0; c < nbColumns; c++) {
+                String column = in.readUTF();
+                isInt[c] = in.readByte() == 'I';
+                header[c+1] = column + (isInt[c] ? " (int32)" : " (float64)");
+            }
+            rows.add(header);
+            int nbRows;
+            while ((nbRows = in.readInt()) > 0) {
+                String[][] group = new String[nbRows][nbColumns+1];
+                for (int c = 0; c < nbColumns; c++)
+                    for (int r = 0; r < nbRows; r++)
+                        group[r][c+1] = isInt[c] ? Integer.toString(in.readInt()) : Double.toString(in.readDouble());
+                for (String[] row: group) {
+                    row[0] = imageName;
+                    rows.add(row);
+                }
+            }
+        }
+        return(rows);
+    }
+
+
+    /**
+     * Rows of results table by image name, header under empty name
+     */
+    private Map<String, String[]> readRows(File file) throws IOException {
+        Map<String, String[]> rows = new LinkedHashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line = reader.readLine();
+            rows.put("", line.split("\t", -1));
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    String[] fields = line.split("\t", -1);
+                    rows.put(fields[0], fields);
+                }
+            }
+        }
+        return(rows);
+    }
+
+
+    private boolean matches(String expected, String actual, double relTol, double absTol) {
+        if (expected.equals(actual))
+            return(true);
+        try {
+            double e = Double.parseDouble(expected), a = Double.parseDouble(actual);
+            if (Double.isNaN(e) || Double.isNaN(a))
+                return(Double.isNaN(e) && Double.isNaN(a));
+            return(Math.abs(a - e) <= absTol + relTol * Math.max(Math.abs(a), Math.abs(e)));
+        } catch (NumberFormatException ex) {
+            return(false);
+        }
+    }
+
+
+    /**
+     * Compare drawing with golden one voxel by voxel, return number of failures
+     */
+    private int checkDrawing(File golden, File drawing, double voxelTol) {
+        ImagePlus expected = IJ.openImage(golden.getPath());
+        ImagePlus actual = IJ.openImage(drawing.getPath());
+        if (expected == null || actual == null)
+            return(fail("drawing " + drawing.getName() + " cannot be opened"));
+        if (expected.getWidth() != actual.getWidth() || expected.getHeight() != actual.getHeight()
+                || expected.getStackSize() != actual.getStackSize() || expected.getBitDepth() != actual.getBitDepth())
+            return(fail("drawing " + drawing.getName() + " size or type changed"));
+        long nbDiff = 0, nbVoxels = 0;
+        for (int s = 1; s <= expected.getStackSize(); s++) {
+            ImageProcessor e = expected.getStack().getProcessor(s), a = actual.getStack().getProcessor(s);
+            for (int i = 0; i < e.getPixelCount(); i++)
+                if (e.get(i) != a.get(i))
+                    nbDiff++;
+            nbVoxels += e.getPixelCount();
+        }
+        expected.close();
+        actual.close();
+        double fraction = (double) nbDiff / nbVoxels;
+        if (fraction > voxelTol)
+            return(fail(String.format("drawing %s: %d voxels differ (%.4f%%)", drawing.getName(), nbDiff, 100 * fraction)));
+        System.out.println("OK drawing " + drawing.getName() + ((nbDiff > 0) ? ", " + nbDiff + " voxels differ" : ""));
+        return(0);
+    }
+
+
+    private int checkBudget(String measure, double value, double budget) {
+        if (value > budget)
+            return(fail(String.format("%s %.0f over budget %.0f", measure, value, budget)));
+        System.out.println(String.format("OK %s %.0f within budget %.0f", measure, value, budget));
+        return(0);
+    }
+
+
+    private int fail(String message) {
+        System.out.println("FAIL " + message);
+        return(1);
+    }
+
+
+    private int usage(String error) {
+        System.out.println(error);
+        System.out.println("Usage: RegressionRunner --dir DIR [--work DIR] [--record] [--KEY VALUE ...]");
+        return(2);
+    }
+
+}
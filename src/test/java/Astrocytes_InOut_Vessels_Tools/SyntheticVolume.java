@@ -0,0 +1,151 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+
+/**
+ * Deterministic synthetic 3-channel stack: tubular vessels, blob microglia and fragmented astrocytes on a noisy background
+ * Densities scale the number of objects, 1 giving about 2% of vessels, 0.5% of microglia and 2% of astrocytes voxels
+ * The same size, densities and seed always give the same voxels
+ * Used by benchmarks and regression runs
+ * @author ORION-CIRB
+ */
+public class SyntheticVolume {
+
+    private static final int BACKGROUND = 100;
+    private static final int NOISE = 40;
+    private static final int SIGNAL = 1000;
+
+    private final int width, height, depth;
+    private final double vesselDensity, microDensity, astroDensity;
+    private final long seed;
+
+
+    public SyntheticVolume(int width, int height, int depth, double vesselDensity, double microDensity, double astroDensity, long seed) {
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.vesselDensity = vesselDensity;
+        this.microDensity = microDensity;
+        this.astroDensity = astroDensity;
+        this.seed = seed;
+    }
+
+
+    /**
+     * Volume of size "WIDTHxHEIGHTxDEPTH" (e.g. "256x256x30") with the same density for all channels
+     */
+    public static SyntheticVolume of(String size, double density, long seed) {
+        String[] dims = size.split("x");
+        return(new SyntheticVolume(Integer.parseInt(dims[0]), Integer.parseInt(dims[1]), Integer.parseInt(dims[2]), density, density, density, seed));
+    }
+
+
+    public long getNbVoxels() {
+        return((long) width * height * depth);
+    }
+
+
+    /**
+     * Vessels, microglia and astrocytes 16-bit channels, calibrated with params pixel sizes
+     */
+    public ImagePlus[] generate(Parameters params) {
+        double zScale = params.pixelWidth / params.pixelDepth;
+        Random rnd = new Random(seed);
+        short[][] vessels = new short[depth][width*height];
+        short[][] micro = new short[depth][width*height];
+        short[][] astro = new short[depth][width*height];
+
+        // Vessels: random tubes crossing the image, radius 3 to 6 pixels
+        int nbVessels = (int) Math.round(vesselDensity * width * height / (128.0*128.0));
+        for (int v = 0; v < nbVessels; v++) {
+            double x = rnd.nextDouble() * width, y = rnd.nextDouble() * height, z = rnd.nextDouble() * depth;
+            double angle = rnd.nextDouble() * 2 * Math.PI, dz = (rnd.nextDouble() - 0.5) * 0.2;
+            double r = 3 + 3 * rnd.nextDouble();
+            int length = (width + height) / 2;
+            for (int s = 0; s < length; s++) {
+                stamp(vessels, x, y, z, r, zScale, SIGNAL);
+                angle += (rnd.nextDouble() - 0.5) * 0.2;
+                x += Math.cos(angle);
+                y += Math.sin(angle);
+                z = Math.max(0, Math.min(depth - 1, z + dz));
+            }
+        }
+
+        // Microglia: blobs of radius 4 to 8 pixels, also seen dimly in vessels channel
+        long nbMicro = Math.round(microDensity * getNbVoxels() / 200000.0);
+        for (long m = 0; m < nbMicro; m++) {
+            double x = rnd.nextDouble() * width, y = rnd.nextDouble() * height, z = rnd.nextDouble() * depth;
+            double r = 4 + 4 * rnd.nextDouble();
+            stamp(micro, x, y, z, r, zScale, SIGNAL);
+            stamp(vessels, x, y, z, r, zScale, SIGNAL / 2);
+        }
+
+        // Astrocytes: clusters of small fragments of radius 1 to 2.5 pixels
+        long nbAstro = Math.round(astroDensity * getNbVoxels() / 20000.0);
+        for (long a = 0; a < nbAstro; a++) {
+            double cx = rnd.nextDouble() * width, cy = rnd.nextDouble() * height, cz = rnd.nextDouble() * depth;
+            int nbFragments = 10 + rnd.nextInt(20);
+            for (int f = 0; f < nbFragments; f++) {
+                double x = cx + rnd.nextGaussian() * 8, y = cy + rnd.nextGaussian() * 8, z = cz + rnd.nextGaussian() * 8 * zScale;
+                stamp(astro, x, y, z, 1 + 1.5 * rnd.nextDouble(), zScale, SIGNAL);
+            }
+        }
+
+        ImagePlus[] imgs = {toImage("vessels", vessels, 1), toImage("microglia", micro, 2), toImage("astrocytes", astro, 3)};
+        for (ImagePlus img: imgs)
+            img.setCalibration(params.getCalibration());
+        return(imgs);
+    }
+
+
+    /**
+     * Set voxels of the ball of center (x, y, z) and radius r pixels to at least value, z radius being r * zScale slices
+     */
+    private void stamp(short[][] ch, double x, double y, double z, double r, double zScale, int value) {
+        double rz = r * zScale;
+        int z0 = Math.max(0, (int) Math.floor(z - rz)), z1 = Math.min(depth - 1, (int) Math.ceil(z + rz));
+        int y0 = Math.max(0, (int) Math.floor(y - r)), y1 = Math.min(height - 1, (int) Math.ceil(y + r));
+        int x0 = Math.max(0, (int) Math.floor(x - r)), x1 = Math.min(width - 1, (int) Math.ceil(x + r));
+        for (int k = z0; k <= z1; k++) {
+            double dz = (k - z) / zScale;
+            short[] pixels = ch[k];
+            for (int j = y0; j <= y1; j++) {
+                double dy = j - y;
+                for (int i = x0; i <= x1; i++) {
+                    double dx = i - x;
+                    if (dx*dx + dy*dy + dz*dz <= r*r && (pixels[i + j*width] & 0xffff) < value)
+                        pixels[i + j*width] = (short) value;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Add background and noise to signal, noise of each slice being drawn from its own generator
+     */
+    private ImagePlus toImage(String title, short[][] signal, int channel) {
+        IntStream.range(0, depth).parallel().forEach(z -> {
+            long state = (seed * 0x9E3779B97F4A7C15L + channel * 1000003L + z) | 1L;
+            short[] pixels = signal[z];
+            for (int i = 0; i < pixels.length; i++) {
+                // xorshift64
+                state ^= state << 13;
+                state ^= state >>> 7;
+                state ^= state << 17;
+                int noise = (int) ((state >>> 33) % NOISE);
+                pixels[i] = (short) Math.min(65535, (pixels[i] & 0xffff) + BACKGROUND + noise);
+            }
+        });
+        ImageStack stack = new ImageStack(width, height);
+        for (short[] pixels: signal)
+            stack.addSlice(new ShortProcessor(width, height, pixels, null));
+        return(new ImagePlus(title, stack));
+    }
+
+}
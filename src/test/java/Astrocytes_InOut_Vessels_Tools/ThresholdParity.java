@@ -0,0 +1,170 @@
+package Astrocytes_InOut_Vessels_Tools;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.plugin.ChannelSplitter;
+import ij.process.AutoThresholder;
+import ij.process.ImageProcessor;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Parity run of the CPU and CLIJ2 threshold backends: both masks are compared for every AutoThresholder method
+ *
+ * Usage: ThresholdParity [--image FILE] [--size WxHxD] [--seed N] [--tolerance F]
+ *   --image FILE   stack whose channels are thresholded, synthetic stacks are used otherwise
+ *   --size WxHxD   size of the synthetic stacks, 256x256x30 by default
+ *   --seed N       seed of the synthetic stacks, 42 by default
+ *   --tolerance F  fraction of voxels allowed to differ, 0 by default
+ * Synthetic stacks are the inputs thresholds get in the analysis: LoG of vessels, median of microglia and of astrocytes
+ * One line is printed per stack and method, with the voxels kept by each backend and the voxels that differ
+ * Exit status is 0 if all masks match within tolerance, 1 otherwise, 2 on usage error or if CLIJ2 is not available
+ * @author ORION-CIRB
+ */
+public class ThresholdParity {
+
+    private final Tools tools = new Tools();
+
+
+    public static void main(String[] args) {
+        int status;
+        try {
+            status = new ThresholdParity().run(args);
+        } catch (Exception ex) {
+            Logger.getLogger(ThresholdParity.class.getName()).log(Level.SEVERE, null, ex);
+            status = 1;
+        }
+        System.exit(status);
+    }
+
+
+    /**
+     * Parse arguments, threshold stacks with both backends and compare masks, return exit status
+     */
+    public int run(String[] args) {
+        String image = null, size = "256x256x30";
+        long seed = 42;
+        double tolerance = 0;
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i+1 >= args.length)
+                return(usage("Unknown argument " + args[i]));
+            String value = args[++i];
+            switch (args[i-1]) {
+                case "--image" :
+                    image = value;
+                    break;
+                case "--size" :
+                    size = value;
+                    break;
+                case "--seed" :
+                    seed = Long.parseLong(value);
+                    break;
+                case "--tolerance" :
+                    tolerance = Double.parseDouble(value);
+                    break;
+                default :
+                    return(usage("Unknown argument " + args[i-1]));
+            }
+        }
+
+        ClijThreshold clij;
+        try {
+            clij = new ClijThreshold();
+            System.out.println("CLIJ2 device: " + clij.getDeviceName());
+        } catch (Exception | LinkageError ex) {
+            System.out.println("CLIJ2 not available: " + ex);
+            return(2);
+        }
+        CpuThreshold cpu = new CpuThreshold();
+
+        Map<String, ImagePlus> stacks = (image == null) ? getSyntheticStacks(size, seed) : getChannels(image);
+        if (stacks.isEmpty())
+            return(usage("Cannot open " + image));
+
+        boolean pass = true;
+        System.out.println("Stack\tMethod\tCPU voxels\tCLIJ voxels\tDiffering voxels\tDiffering fraction");
+        for (Map.Entry<String, ImagePlus> stack: stacks.entrySet()) {
+            ImagePlus img = stack.getValue();
+            long nbVoxels = Tools.getNbVoxels(img);
+            for (String method: AutoThresholder.getMethods()) {
+                Mask3D cpuMask = cpu.thresholdMask(img, method);
+                ImagePlus clijBin = clij.threshold(img, method);
+                long[] counts = compare(cpuMask, clijBin.getStack());
+                clijBin.flush();
+                double fraction = (double) counts[2] / nbVoxels;
+                boolean ok = fraction <= tolerance;
+                pass &= ok;
+                System.out.println(String.format(Locale.ROOT, "%s\t%s\t%d\t%d\t%d\t%.3g%s", stack.getKey(), method,
+                        counts[0], counts[1], counts[2], fraction, ok ? "" : "\tFAIL"));
+            }
+            tools.flushCloseImg(img);
+        }
+        System.out.println(pass ? "PASS" : "FAIL");
+        return(pass ? 0 : 1);
+    }
+
+
+    /**
+     * Voxels set in mask, voxels set in binary stack and voxels that differ
+     */
+    private long[] compare(Mask3D mask, ImageStack bin) {
+        long[] counts = new long[3];
+        for (int z = 0; z < mask.getDepth(); z++) {
+            ImageProcessor ip = bin.getProcessor(z+1);
+            for (int i = 0; i < mask.getWidth()*mask.getHeight(); i++) {
+                boolean m = mask.get(i, z);
+                boolean b = ip.getf(i) != 0;
+                counts[0] += m ? 1 : 0;
+                counts[1] += b ? 1 : 0;
+                counts[2] += (m != b) ? 1 : 0;
+            }
+        }
+        return(counts);
+    }
+
+
+    /**
+     * Filtered channels of a synthetic stack, as thresholded in the analysis
+     */
+    private Map<String, ImagePlus> getSyntheticStacks(String size, long seed) {
+        Parameters params = new Parameters(new Properties());
+        ImagePlus[] imgs = SyntheticVolume.of(size, 1, seed).generate(params);
+        Map<String, ImagePlus> stacks = new LinkedHashMap<>();
+        stacks.put("vessels LoG", tools.filterVessels(imgs[0]));
+        stacks.put("microglia median", tools.filterMicroglia(imgs[1]));
+        stacks.put("astrocytes median", tools.filterAstrocytes(imgs[2]));
+        for (ImagePlus img: imgs)
+            tools.flushCloseImg(img);
+        return(stacks);
+    }
+
+
+    /**
+     * Channels of image file, empty if it cannot be opened
+     */
+    private Map<String, ImagePlus> getChannels(String image) {
+        Map<String, ImagePlus> stacks = new LinkedHashMap<>();
+        ImagePlus img = IJ.openImage(image);
+        if (img == null)
+            return(stacks);
+        ImagePlus[] channels = ChannelSplitter.split(img);
+        for (int c = 0; c < channels.length; c++)
+            stacks.put("channel " + c, channels[c]);
+        img.close();
+        return(stacks);
+    }
+
+
+    private int usage(String error) {
+        System.out.println(error);
+        System.out.println("Usage: ThresholdParity [--image FILE] [--size WxHxD] [--seed N] [--tolerance F]");
+        return(2);
+    }
+
+}